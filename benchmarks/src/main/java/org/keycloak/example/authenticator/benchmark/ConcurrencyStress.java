@@ -0,0 +1,318 @@
+package org.keycloak.example.authenticator.benchmark;
+
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import jakarta.ws.rs.core.MultivaluedMap;
+import org.keycloak.authentication.Authenticator;
+import org.keycloak.authentication.RequiredActionContext;
+import org.keycloak.authentication.RequiredActionProvider;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.credential.CredentialProvider;
+import org.keycloak.example.authenticator.*;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.http.HttpRequest;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.models.UserModel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+// 并发压力检查：用多个线程同时驱动Factory返回的认证器和必需操作单例，检查共享状态（解码缓存、集群错误次数计数、Cookie签发、凭据创建）在高并发下没有竞争问题
+// 1. 用户之间互不影响：每个线程一个用户，答对得到的Cookie只对本人有效，问题固定后提交别人的凭据Id不会换成别人的凭据
+// 2. 不重复创建凭据：多个线程同时为同一用户提交必需操作，只会创建一个凭据
+// 3. 计数不丢失：两个节点并发记录并批量写入集群的错误次数、缓存命中/未命中次数与实际调用次数一致
+// 4. 吞吐随线程数的变化：从1个线程到N个线程各运行固定时长，输出每秒完成的流程数
+// 运行：java -cp target/benchmarks.jar org.keycloak.example.authenticator.benchmark.ConcurrencyStress [最大线程数] [每线程流程数]
+// 任何一项检查失败时以状态码1退出
+public class ConcurrencyStress {
+    private static final long SCALING_MILLIS = 2000;
+    private static final long LONG_WINDOW = TimeUnit.DAYS.toMillis(3650);
+
+    private final int maxThreads;
+    private final int flowsPerThread;
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+    private final Authenticator authenticator = new SecretQuestionAuthenticatorFactory().create(null);
+    private final RequiredActionProvider requiredAction = new SecretQuestionRequiredActionFactory().create(null);
+    private final RealmModel realm = InMemoryKeycloak.realm("stress");
+
+    private ConcurrencyStress(int maxThreads, int flowsPerThread) {
+        this.maxThreads = maxThreads;
+        this.flowsPerThread = flowsPerThread;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int flowsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        SecretQuestionHasher hasher = SecretQuestionHasher.getInstance();
+        hasher.configure(maxThreads, 4096, 10000);
+        hasher.calibrate(1);
+        ConcurrencyStress stress = new ConcurrencyStress(maxThreads, flowsPerThread);
+        try {
+            stress.checkIsolation();
+            stress.checkDuplicateRegistration();
+            stress.checkCounters();
+            stress.reportScaling();
+        } finally {
+            hasher.shutdown();
+        }
+        if (!stress.failures.isEmpty()) {
+            stress.failures.stream().limit(20).forEach(f -> System.out.println("FAIL " + f));
+            System.out.printf("%d项检查失败%n", stress.failures.size());
+            System.exit(1);
+        }
+        System.out.println("全部检查通过");
+    }
+
+    // 一个线程的登录现场：用户、凭据和流程上下文
+    private final class Login {
+        final int index;
+        final UserModel user;
+        final String answer;
+        final String credentialId;
+        final KeycloakSession session;
+        final InMemoryKeycloak.Flow flow;
+
+        Login(int index, SecretQuestionCredentialCache cache) {
+            this.index = index;
+            this.user = InMemoryKeycloak.user("stress-" + index + "-" + System.nanoTime(), InMemoryKeycloak.newStore());
+            this.answer = "answer-" + index;
+            this.session = InMemoryKeycloak.session(cache);
+            SecretQuestionCredentialProvider provider = (SecretQuestionCredentialProvider) session.getProvider(CredentialProvider.class, SecretQuestionCredentialProviderFactory.PROVIDER_ID);
+            this.credentialId = provider.createCredential(realm, user, SecretQuestionCredentialModel.createSecretQuestion("q", answer)).getId();
+            this.flow = new InMemoryKeycloak.Flow(session, realm, user);
+            flow.config.getConfig().put(SecretQuestionAuthenticatorFactory.ATTEMPT_LIMIT_MAX, "0");
+            flow.config.getConfig().put(SecretQuestionAuthenticatorFactory.ATTEMPT_LIMIT_USER_MAX, "0");
+        }
+    }
+
+    private List<Login> logins(int count, SecretQuestionCredentialCache cache) {
+        List<Login> logins = new ArrayList<>();
+        for (int i = 0; i < count; i++) logins.add(new Login(i, cache));
+        return logins;
+    }
+
+    private void checkIsolation() throws InterruptedException {
+        SecretQuestionCredentialCache cache = new SecretQuestionCredentialCache(maxThreads / 2 + 1, TimeUnit.MINUTES.toMillis(5));
+        List<Login> logins = logins(maxThreads, cache);
+        runConcurrently(maxThreads, t -> {
+            Login self = logins.get(t);
+            Login other = logins.get((t + 1) % logins.size());
+            for (int i = 0; i < flowsPerThread; i++) {
+                switch (i % 3) {
+                    case 0 -> {
+                        self.flow.submit(self.credentialId, self.answer);
+                        authenticator.action(self.flow.context);
+                        String cookie = InMemoryKeycloak.responseCookie(self.session, SecretQuestionCookie.NAME);
+                        expect("success".equals(self.flow.status), "用户%d答对问题却未通过：%s", self.index, self.flow.status);
+                        expect(cookie != null && SecretQuestionCookie.verify(self.session, realm, self.user, cookie), "用户%d的Cookie无效", self.index);
+                        expect(other == self || cookie == null || !SecretQuestionCookie.verify(self.session, realm, other.user, cookie), "用户%d的Cookie对用户%d有效", self.index, other.index);
+                    }
+                    case 1 -> {
+                        self.flow.submit(self.credentialId, other.answer);
+                        authenticator.action(self.flow.context);
+                        expect(other == self || "failure".equals(self.flow.status), "用户%d用用户%d的答案通过了", self.index, other.index);
+                    }
+                    default -> {
+                        // 问题在authenticate()中固定到认证会话后，表单里提交的凭据Id不起作用：用别人的凭据Id和答案不能通过，
+                        // 用别人的凭据Id和自己的答案仍然按固定的问题通过
+                        self.flow.submit(null, null);
+                        authenticator.authenticate(self.flow.context);
+                        String pinned = self.flow.authNotes.get(SecretQuestionAuthenticator.AUTH_NOTE_CREDENTIAL_ID);
+                        expect(self.credentialId.equals(pinned), "用户%d固定的问题不是自己的凭据：%s", self.index, pinned);
+                        self.flow.submit(other.credentialId, other.answer);
+                        authenticator.action(self.flow.context);
+                        expect(other == self || "failure".equals(self.flow.status), "用户%d用用户%d的凭据通过了", self.index, other.index);
+                        self.flow.submit(other.credentialId, self.answer);
+                        authenticator.action(self.flow.context);
+                        expect("success".equals(self.flow.status), "用户%d提交了其他凭据Id后没有按固定的问题验证：%s", self.index, self.flow.status);
+                    }
+                }
+            }
+        });
+        System.out.printf("用户隔离：%d个线程 × %d个流程%n", maxThreads, flowsPerThread);
+    }
+
+    private void checkDuplicateRegistration() throws InterruptedException {
+        SecretQuestionCredentialCache cache = new SecretQuestionCredentialCache(1000, TimeUnit.MINUTES.toMillis(5));
+        int rounds = Math.max(1, flowsPerThread / 10);
+        for (int round = 0; round < rounds; round++) {
+            Map<String, CredentialModel> store = InMemoryKeycloak.newStore();
+            UserModel user = InMemoryKeycloak.user("register-" + round + "-" + System.nanoTime(), store);
+            runConcurrently(maxThreads, t -> requiredAction.processAction(requiredActionContext(InMemoryKeycloak.session(cache), user, "answer-" + t)));
+            long created = store.values().stream().filter(c -> SecretQuestionCredentialModel.TYPE.equals(c.getType())).count();
+            expect(created == 1, "第%d轮并发提交创建了%d个凭据", round, created);
+        }
+        // 两个节点：同一用户的两次提交分别落在两个节点的必需操作实例上，第一个事务提交前第二次提交就已到达，
+        // 凭据在提交前对另一个事务不可见，只能靠集群共享的标记避免重复创建
+        RequiredActionProvider[] nodes = {requiredAction, new SecretQuestionRequiredActionFactory().create(null)};
+        SingleUseObjectProvider cluster = InMemoryKeycloak.singleUseObjects(new ConcurrentHashMap<>());
+        for (int round = 0; round < rounds; round++) {
+            Map<String, CredentialModel> store = InMemoryKeycloak.newStore();
+            String username = "register-nodes-" + round + "-" + System.nanoTime();
+            InMemoryKeycloak.DeferredTransaction[] transactions = {new InMemoryKeycloak.DeferredTransaction(store), new InMemoryKeycloak.DeferredTransaction(store)};
+            for (int n = 0; n < nodes.length; n++) {
+                KeycloakSession session = InMemoryKeycloak.session(cache, cluster, transactions[n].manager());
+                nodes[n].processAction(requiredActionContext(session, transactions[n].user(username), "answer-" + n));
+            }
+            for (InMemoryKeycloak.DeferredTransaction tx : transactions) tx.commit();
+            long created = store.values().stream().filter(c -> SecretQuestionCredentialModel.TYPE.equals(c.getType())).count();
+            expect(created == 1, "第%d轮两个节点的提交创建了%d个凭据", round, created);
+            // 两个事务都结束后标记已清除，再次提交不会被当作进行中的提交，也不会重复创建
+            InMemoryKeycloak.DeferredTransaction again = new InMemoryKeycloak.DeferredTransaction(store);
+            nodes[1].processAction(requiredActionContext(InMemoryKeycloak.session(cache, cluster, again.manager()), again.user(username), "answer-1"));
+            again.commit();
+            created = store.values().stream().filter(c -> SecretQuestionCredentialModel.TYPE.equals(c.getType())).count();
+            expect(created == 1, "第%d轮事务结束后再次提交，凭据数为%d", round, created);
+        }
+        System.out.printf("重复提交：%d轮 × %d个并发提交，%d轮 × 两个节点%n", rounds, maxThreads, rounds);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void checkCounters() throws InterruptedException {
+        // 两个节点各自的计数器共用同一个集群缓存，线程轮流落在两个节点上，批量写入后总数不丢失
+        SingleUseObjectProvider cluster = InMemoryKeycloak.singleUseObjects(new ConcurrentHashMap<>());
+        KeycloakSession session = InMemoryKeycloak.session(null, cluster);
+        SecretQuestionFailureTracker[] nodes = {new SecretQuestionFailureTracker(), new SecretQuestionFailureTracker()};
+        String key = SecretQuestionFailureTracker.key(realm.getId(), "counter-user");
+        runConcurrently(maxThreads, t -> {
+            SecretQuestionFailureTracker node = nodes[t % nodes.length];
+            for (int i = 0; i < flowsPerThread; i++) node.recordFailure(session, key, 0, Integer.MAX_VALUE, LONG_WINDOW);
+        });
+        int total = maxThreads * flowsPerThread;
+        long local = nodes[0].failures(session, key) + nodes[1].failures(session, key);
+        expect(local == total, "本地累积的错误次数丢失：%d，应为%d", local, total);
+        for (SecretQuestionFailureTracker node : nodes) node.flush(session);
+        for (SecretQuestionFailureTracker node : nodes) {
+            expect(node.failures(session, key) == total, "批量写入后集群中的错误次数为%d，应为%d", node.failures(session, key), total);
+        }
+        // 某个节点上达到上限的那次错误立即写入，另一个节点无需等待批量写入即可看到锁定
+        String lockKey = SecretQuestionFailureTracker.key(realm.getId(), "lock-user");
+        int max = 5;
+        for (int i = 0; i < max; i++) nodes[0].recordFailure(session, lockKey, nodes[0].failures(session, lockKey), max, LONG_WINDOW);
+        expect(nodes[1].failures(session, lockKey) >= max, "另一个节点没有看到锁定：%d", nodes[1].failures(session, lockKey));
+        nodes[1].reset(session, lockKey, nodes[1].failures(session, lockKey));
+        expect(nodes[0].failures(session, lockKey) == 0, "回答正确后集群中的错误次数未清除");
+        // 批量写入与锁定交错：节点1先读到锁定前的计数，节点0随后写入锁定，节点1再用较小的计数覆盖，锁定仍然有效
+        Map<String, Map<String, String>> raceStore = new ConcurrentHashMap<>();
+        KeycloakSession raceSession = InMemoryKeycloak.session(null, InMemoryKeycloak.singleUseObjects(raceStore));
+        String raceKey = SecretQuestionFailureTracker.key(realm.getId(), "race-user");
+        for (int i = 0; i < max - 2; i++) nodes[0].recordFailure(raceSession, raceKey, nodes[0].failures(raceSession, raceKey), max, LONG_WINDOW);
+        nodes[0].flush(raceSession);
+        nodes[1].recordFailure(raceSession, raceKey, nodes[1].failures(raceSession, raceKey), Integer.MAX_VALUE, LONG_WINDOW);
+        Map<String, String> beforeLock = raceStore.get(raceKey);
+        for (int i = 0; i < 2; i++) nodes[0].recordFailure(raceSession, raceKey, nodes[0].failures(raceSession, raceKey), max, LONG_WINDOW);
+        Map<String, Function<Object[], Object>> staleAnswers = new HashMap<>();
+        staleAnswers.put("get", a -> raceKey.equals(a[0]) ? beforeLock : raceStore.get((String) a[0]));
+        staleAnswers.put("put", a -> raceStore.put((String) a[0], (Map<String, String>) a[2]));
+        nodes[1].flush(InMemoryKeycloak.session(null, InMemoryKeycloak.stub(SingleUseObjectProvider.class, staleAnswers)));
+        expect("4".equals(raceStore.get(raceKey).get("count")), "没有模拟出覆盖：%s", raceStore.get(raceKey));
+        long raced = nodes[1].failures(raceSession, raceKey);
+        expect(raced >= max, "计数被覆盖后锁定丢失：%d", raced);
+        nodes[1].reset(raceSession, raceKey, raced);
+        expect(raceStore.isEmpty(), "回答正确后锁定标记未清除：%s", raceStore.keySet());
+
+        SecretQuestionCredentialCache cache = new SecretQuestionCredentialCache(4, TimeUnit.MINUTES.toMillis(5));
+        List<CredentialModel> stored = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            CredentialModel cm = SecretQuestionCredentialModel.createSecretQuestion("q", "a" + i);
+            cm.setId("counter-" + i);
+            stored.add(cm);
+        }
+        runConcurrently(maxThreads, t -> {
+            for (int i = 0; i < flowsPerThread; i++) {
+                CredentialModel cm = stored.get((t + i) % stored.size());
+                SecretQuestionCredentialModel decoded = cache.get(cm);
+                expect(cm.getId().equals(decoded.getId()) && cm.getSecretData().equals(decoded.getSecretData()), "缓存返回了其他凭据的内容：%s", cm.getId());
+            }
+        });
+        expect(cache.getHits() + cache.getMisses() == total, "缓存计数丢失：命中%d + 未命中%d ≠ %d", cache.getHits(), cache.getMisses(), total);
+        expect(cache.size() <= cache.getMaxSize(), "缓存超出容量：%d", cache.size());
+        System.out.printf("计数：%d次并发更新%n", total);
+    }
+
+    // 每个线程一个用户，在固定时长内不断完成答对问题的流程
+    private void reportScaling() throws InterruptedException {
+        SecretQuestionCredentialCache cache = new SecretQuestionCredentialCache(10000, TimeUnit.MINUTES.toMillis(5));
+        List<Login> logins = logins(maxThreads, cache);
+        System.out.println("线程数\t流程/秒\t加速比");
+        double baseline = 0;
+        for (int threads = 1; threads <= maxThreads; threads = threads == maxThreads ? threads + 1 : Math.min(threads * 2, maxThreads)) {
+            AtomicLong completed = new AtomicLong();
+            AtomicBoolean running = new AtomicBoolean(true);
+            long start = System.nanoTime();
+            Thread timer = new Thread(() -> {
+                try {
+                    Thread.sleep(SCALING_MILLIS);
+                } catch (InterruptedException ignored) {
+                }
+                running.set(false);
+            });
+            timer.start();
+            runConcurrently(threads, t -> {
+                Login self = logins.get(t);
+                while (running.get()) {
+                    self.flow.submit(self.credentialId, self.answer);
+                    authenticator.action(self.flow.context);
+                    completed.incrementAndGet();
+                }
+            });
+            timer.join();
+            double perSecond = completed.get() * 1e9 / (System.nanoTime() - start);
+            if (threads == 1) baseline = perSecond;
+            System.out.printf("%d\t%.0f\t%.2f%n", threads, perSecond, baseline == 0 ? 0 : perSecond / baseline);
+        }
+    }
+
+    private RequiredActionContext requiredActionContext(KeycloakSession session, UserModel user, String answer) {
+        MultivaluedMap<String, String> form = new MultivaluedHashMap<>();
+        form.putSingle("secret_answer", answer);
+        HttpRequest request = InMemoryKeycloak.stub(HttpRequest.class, Map.of("getDecodedFormParameters", a -> form));
+        LoginFormsProvider[] forms = new LoginFormsProvider[1];
+        forms[0] = InMemoryKeycloak.stub(LoginFormsProvider.class, Map.of(
+                "setAttribute", a -> forms[0],
+                "setError", a -> forms[0]));
+        Map<String, java.util.function.Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("form", a -> forms[0]);
+        answers.put("getSession", a -> session);
+        answers.put("getRealm", a -> realm);
+        answers.put("getUser", a -> user);
+        answers.put("getHttpRequest", a -> request);
+        return InMemoryKeycloak.stub(RequiredActionContext.class, answers);
+    }
+
+    // 所有线程就绪后同时开始，异常也记为失败
+    private void runConcurrently(int threads, IntConsumer body) throws InterruptedException {
+        CountDownLatch ready = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    ready.await();
+                    body.accept(index);
+                } catch (Throwable e) {
+                    failures.add("线程" + index + "异常：" + e);
+                }
+            }, "stress-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        ready.countDown();
+        for (Thread worker : workers) worker.join();
+    }
+
+    private void expect(boolean condition, String format, Object... args) {
+        if (!condition) failures.add(String.format(format, args));
+    }
+}
@@ -0,0 +1,316 @@
+package org.keycloak.example.authenticator.benchmark;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.core.NewCookie;
+import jakarta.ws.rs.core.UriBuilder;
+import jakarta.ws.rs.core.UriInfo;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.common.ClientConnection;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.credential.CredentialProvider;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.example.authenticator.SecretQuestionCredentialCache;
+import org.keycloak.example.authenticator.SecretQuestionCredentialProvider;
+import org.keycloak.example.authenticator.SecretQuestionCredentialProviderFactory;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.http.HttpRequest;
+import org.keycloak.http.HttpResponse;
+import org.keycloak.models.*;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.security.SecureRandom;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+// 基准测试用的内存替身，用动态代理实现Keycloak的大接口，只回应认证流程实际用到的方法
+public final class InMemoryKeycloak {
+
+    private InMemoryKeycloak() {
+    }
+
+    // 创建接口替身：answers中按方法名给出实现，default方法走接口默认实现，其余返回类型默认值
+    @SuppressWarnings("unchecked")
+    public static <T> T stub(Class<T> type, Map<String, Function<Object[], Object>> answers) {
+        InvocationHandler handler = (proxy, method, args) -> {
+            Function<Object[], Object> answer = answers.get(method.getName());
+            if (answer != null) return answer.apply(args);
+            if (method.isDefault()) return InvocationHandler.invokeDefault(proxy, method, args);
+            switch (method.getName()) {
+                case "hashCode": return System.identityHashCode(proxy);
+                case "equals": return proxy == args[0];
+                case "toString": return type.getSimpleName() + "@stub";
+            }
+            Class<?> r = method.getReturnType();
+            if (r == boolean.class) return false;
+            if (r == int.class) return 0;
+            if (r == long.class) return 0L;
+            return null;
+        };
+        return (T) Proxy.newProxyInstance(InMemoryKeycloak.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    public static RealmModel realm(String name) {
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getName", a -> name);
+        answers.put("getId", a -> name);
+        return stub(RealmModel.class, answers);
+    }
+
+    // 以Map保存凭据的用户替身，credentialManager()的读写都落在这个Map上
+    public static UserModel user(String username, Map<String, CredentialModel> store) {
+        SubjectCredentialManager manager = credentialManager(store);
+        String id = UUID.nameUUIDFromBytes(username.getBytes()).toString();
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getId", a -> id);
+        answers.put("getUsername", a -> username);
+        answers.put("credentialManager", a -> manager);
+        return stub(UserModel.class, answers);
+    }
+
+    public static SubjectCredentialManager credentialManager(Map<String, CredentialModel> store) {
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getStoredCredentialById", a -> store.get((String) a[0]));
+        answers.put("getStoredCredentialsStream", a -> store.values().stream());
+        answers.put("getStoredCredentialsByTypeStream", a -> store.values().stream().filter(c -> a[0].equals(c.getType())));
+        answers.put("isConfiguredFor", a -> store.values().stream().anyMatch(c -> a[0].equals(c.getType())));
+        answers.put("createStoredCredential", a -> {
+            CredentialModel cm = (CredentialModel) a[0];
+            if (cm.getId() == null) cm.setId(UUID.randomUUID().toString());
+            store.put(cm.getId(), cm);
+            return cm;
+        });
+        answers.put("updateStoredCredential", a -> {
+            CredentialModel cm = (CredentialModel) a[0];
+            store.put(cm.getId(), cm);
+            return null;
+        });
+        answers.put("removeStoredCredentialById", a -> store.remove((String) a[0]) != null);
+        return stub(SubjectCredentialManager.class, answers);
+    }
+
+    public static Map<String, CredentialModel> newStore() {
+        return new ConcurrentHashMap<>();
+    }
+
+    // 只有一把HS512密钥的密钥管理替身，用于签发和校验Cookie
+    private static final KeyManager KEYS = keyManager();
+
+    private static KeyManager keyManager() {
+        byte[] secret = new byte[64];
+        new SecureRandom().nextBytes(secret);
+        KeyWrapper key = new KeyWrapper();
+        key.setKid("bench-hmac");
+        key.setUse(KeyUse.SIG);
+        key.setAlgorithm(Algorithm.HS512);
+        key.setSecretKey(new SecretKeySpec(secret, "HmacSHA512"));
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getActiveKey", a -> key);
+        answers.put("getKey", a -> key.getKid().equals(a[1]) ? key : null);
+        return stub(KeyManager.class, answers);
+    }
+
+    // 响应中设置的Cookie以此前缀保存在会话属性中，下一次submit()时清空
+    private static final String RESPONSE_COOKIE = "stub.response-cookie:";
+
+    public static String responseCookie(KeycloakSession session, String name) {
+        return (String) session.getAttribute(RESPONSE_COOKIE + name);
+    }
+
+    // SingleUseObjectProvider替身：以Map保存，不处理生存时间；所有会话默认共用同一个，相当于集群各节点看到的同一个缓存
+    private static final SingleUseObjectProvider SINGLE_USE_OBJECTS = singleUseObjects(new ConcurrentHashMap<>());
+
+    @SuppressWarnings("unchecked")
+    public static SingleUseObjectProvider singleUseObjects(Map<String, Map<String, String>> store) {
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("put", a -> store.put((String) a[0], Map.copyOf((Map<String, String>) a[2])));
+        answers.put("get", a -> store.get((String) a[0]));
+        answers.put("remove", a -> store.remove((String) a[0]));
+        answers.put("replace", a -> store.replace((String) a[0], Map.copyOf((Map<String, String>) a[1])) != null);
+        answers.put("putIfAbsent", a -> store.putIfAbsent((String) a[0], Map.of()) == null);
+        answers.put("contains", a -> store.containsKey((String) a[0]));
+        return stub(SingleUseObjectProvider.class, answers);
+    }
+
+    public static KeycloakSession session(SecretQuestionCredentialCache cache) {
+        return session(cache, SINGLE_USE_OBJECTS);
+    }
+
+    // 事务管理器替身：替身的写入立即生效，登记的事务结束回调也立即执行
+    private static final KeycloakTransactionManager TRANSACTIONS = stub(KeycloakTransactionManager.class, Map.of(
+            "enlistAfterCompletion", a -> {
+                KeycloakTransaction tx = (KeycloakTransaction) a[0];
+                tx.begin();
+                tx.commit();
+                return null;
+            }));
+
+    public static KeycloakSession session(SecretQuestionCredentialCache cache, SingleUseObjectProvider singleUseObjects) {
+        return session(cache, singleUseObjects, TRANSACTIONS);
+    }
+
+    // 延迟提交的事务替身，模拟JPA：本事务写入的凭据先放在暂存区，只有本事务的用户替身能看到；
+    // commit()时才写入共享的存储区，然后执行登记的事务结束回调
+    public static final class DeferredTransaction {
+        private final Map<String, CredentialModel> committed;
+        private final Map<String, CredentialModel> staged = new ConcurrentHashMap<>();
+        private final List<KeycloakTransaction> afterCompletion = new CopyOnWriteArrayList<>();
+        private final KeycloakTransactionManager manager = stub(KeycloakTransactionManager.class, Map.of(
+                "enlistAfterCompletion", a -> afterCompletion.add((KeycloakTransaction) a[0])));
+
+        public DeferredTransaction(Map<String, CredentialModel> committed) {
+            this.committed = committed;
+        }
+
+        public KeycloakTransactionManager manager() {
+            return manager;
+        }
+
+        // 本事务中看到的用户：读取已提交的和本事务暂存的凭据，新写入的只进暂存区
+        public UserModel user(String username) {
+            Map<String, CredentialModel> view = new AbstractMap<>() {
+                @Override
+                public Set<Entry<String, CredentialModel>> entrySet() {
+                    Map<String, CredentialModel> merged = new HashMap<>(committed);
+                    merged.putAll(staged);
+                    return merged.entrySet();
+                }
+
+                @Override
+                public CredentialModel get(Object key) {
+                    CredentialModel cm = staged.get(key);
+                    return cm != null ? cm : committed.get(key);
+                }
+
+                @Override
+                public CredentialModel put(String key, CredentialModel value) {
+                    return staged.put(key, value);
+                }
+            };
+            return InMemoryKeycloak.user(username, view);
+        }
+
+        public void commit() {
+            committed.putAll(staged);
+            staged.clear();
+            for (KeycloakTransaction tx : afterCompletion) {
+                tx.begin();
+                tx.commit();
+            }
+            afterCompletion.clear();
+        }
+    }
+
+    // 会话替身，getProvider()返回绑定到本会话、共享同一个解码缓存的Provider
+    public static KeycloakSession session(SecretQuestionCredentialCache cache, SingleUseObjectProvider singleUseObjects, KeycloakTransactionManager transactions) {
+        Map<String, Object> attributes = new HashMap<>();
+        HttpResponse response = stub(HttpResponse.class, Map.of("setCookieIfAbsent", a -> {
+            NewCookie cookie = (NewCookie) a[0];
+            return attributes.putIfAbsent(RESPONSE_COOKIE + cookie.getName(), cookie.getValue());
+        }));
+        KeycloakContext context = stub(KeycloakContext.class, Map.of("getHttpResponse", a -> response));
+        KeycloakSession[] self = new KeycloakSession[1];
+        SecretQuestionCredentialProvider[] provider = new SecretQuestionCredentialProvider[1];
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getContext", a -> context);
+        answers.put("keys", a -> KEYS);
+        answers.put("singleUseObjects", a -> singleUseObjects);
+        answers.put("getTransactionManager", a -> transactions);
+        answers.put("getAttribute", a -> attributes.get((String) a[0]));
+        answers.put("setAttribute", a -> attributes.put((String) a[0], a[1]));
+        answers.put("removeAttribute", a -> attributes.remove((String) a[0]));
+        answers.put("getAttributes", a -> attributes);
+        answers.put("getProvider", a -> {
+            if (a.length == 2 && a[0] == CredentialProvider.class && SecretQuestionCredentialProviderFactory.PROVIDER_ID.equals(a[1])) {
+                if (provider[0] == null) provider[0] = new SecretQuestionCredentialProvider(self[0], cache);
+                return provider[0];
+            }
+            return null;
+        });
+        self[0] = stub(KeycloakSession.class, answers);
+        return self[0];
+    }
+
+    // 一次认证流程的上下文替身，记录流程最终状态，供基准测试校验和重置
+    public static final class Flow {
+        public final MultivaluedMap<String, String> formParameters = new MultivaluedHashMap<>();
+        public final Map<String, String> clientNotes = new HashMap<>();
+        // 认证会话的authNote，保存authenticate()选定的问题，跨请求保留
+        public final Map<String, String> authNotes = new HashMap<>();
+        // 请求的Accept头，加入application/json即为JSON挑战模式
+        public final List<MediaType> accept = new ArrayList<>();
+        // 认证器配置（管理控制台中小齿轮的配置项）
+        public final AuthenticatorConfigModel config = new AuthenticatorConfigModel();
+        public final AuthenticationFlowContext context;
+        private final KeycloakSession session;
+        public String status;
+
+        public Flow(KeycloakSession session, RealmModel realm, UserModel user) {
+            this.session = session;
+            UriInfo uriInfo = stub(UriInfo.class, Map.of(
+                    "getBaseUri", a -> URI.create("http://localhost:8080/"),
+                    "getBaseUriBuilder", a -> UriBuilder.fromUri("http://localhost:8080/")));
+            HttpHeaders headers = stub(HttpHeaders.class, Map.of(
+                    "getAcceptableMediaTypes", a -> accept,
+                    "getCookies", a -> Map.of()));
+            HttpRequest request = stub(HttpRequest.class, Map.of(
+                    "getDecodedFormParameters", a -> formParameters,
+                    "getHttpHeaders", a -> headers,
+                    "getUri", a -> uriInfo));
+            AuthenticationSessionModel authSession = stub(AuthenticationSessionModel.class, Map.of(
+                    "getClientNote", a -> clientNotes.get((String) a[0]),
+                    "setClientNote", a -> clientNotes.put((String) a[0], (String) a[1]),
+                    "getAuthNote", a -> authNotes.get((String) a[0]),
+                    "setAuthNote", a -> authNotes.put((String) a[0], (String) a[1]),
+                    "removeAuthNote", a -> authNotes.remove((String) a[0])));
+            ClientConnection connection = stub(ClientConnection.class, Map.of("getRemoteAddr", a -> "127.0.0.1"));
+            config.setId(UUID.randomUUID().toString());
+            config.setConfig(new HashMap<>());
+            LoginFormsProvider[] form = new LoginFormsProvider[1];
+            form[0] = stub(LoginFormsProvider.class, Map.of(
+                    "setError", a -> form[0],
+                    "setAttribute", a -> form[0]));
+
+            Map<String, Function<Object[], Object>> answers = new HashMap<>();
+            answers.put("getSession", a -> session);
+            answers.put("getRealm", a -> realm);
+            answers.put("getUser", a -> user);
+            answers.put("getHttpRequest", a -> request);
+            answers.put("getUriInfo", a -> uriInfo);
+            answers.put("getAuthenticationSession", a -> authSession);
+            answers.put("getConnection", a -> connection);
+            answers.put("getAuthenticatorConfig", a -> config);
+            answers.put("form", a -> form[0]);
+            answers.put("generateAccessCode", a -> "code");
+            answers.put("getActionUrl", a -> URI.create("http://localhost:8080/realms/" + realm.getName() + "/login-actions/authenticate?code=" + a[0]));
+            answers.put("success", a -> status = "success");
+            answers.put("challenge", a -> status = "challenge");
+            answers.put("failureChallenge", a -> status = "failure");
+            this.context = stub(AuthenticationFlowContext.class, answers);
+        }
+
+        // 模拟一次新的表单提交，清空会话属性使请求范围的状态不会跨请求保留
+        public void submit(String credentialId, String answer) {
+            status = null;
+            session.getAttributes().clear();
+            formParameters.putSingle("credentialId", credentialId);
+            formParameters.putSingle("secret_answer", answer);
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package org.keycloak.example.authenticator.benchmark;
+
+import org.keycloak.example.authenticator.SecretQuestionAuthenticatorFactory;
+import org.keycloak.example.authenticator.dto.SecretQuestionImportRecord;
+import org.keycloak.representations.idm.AuthenticationExecutionExportRepresentation;
+import org.keycloak.representations.idm.AuthenticationFlowRepresentation;
+import org.keycloak.representations.idm.AuthenticatorConfigRepresentation;
+import org.keycloak.representations.idm.ClientRepresentation;
+import org.keycloak.representations.idm.RealmRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// 端到端压力测试：对部署了本插件的Keycloak，经本机HTTP并发执行完整的浏览器登录流程，
+// 授权请求 -> 用户名表单 -> authenticate()出题 -> 提交答案 -> action()验证 -> 重定向回客户端并带上授权码
+// 1. 可选地启动本机的Keycloak发行版（--kc-home，start-dev模式，使用H2的dev-file数据库），启动前把插件jar复制到providers目录
+// 2. 重建测试领域：用户名表单 + 密保问题的浏览器流程、一个公开客户端和一个具有manage-users权限的服务账号，
+//    再通过插件的批量导入接口为N个用户写入密保问题
+// 3. 多个线程各自循环登录，预热结束后开始统计，输出每秒登录数、p50/p99/p99.9延迟和每次登录的SQL语句数
+// SQL语句数来自管理端口的/metrics中Hibernate的统计，需要在conf/quarkus.properties中开启
+// quarkus.hibernate-orm.metrics.enabled=true和quarkus.hibernate-orm.statistics=true，未开启时显示n/a
+// 由DeviceAuth转来时的设备注册依赖其客户端写入的认证会话备注，不在本测试的范围内
+// 运行：java -cp target/benchmarks.jar org.keycloak.example.authenticator.benchmark.LoginLoadTest --kc-home=/opt/keycloak --provider=../target/demo-1.0-SNAPSHOT.jar
+// 其他参数：--url、--management-url、--admin-user、--admin-password、--realm、--users、--threads、--warmup、--duration（秒）、--json、--max-p99（毫秒）
+// 出现失败的登录或p99超过--max-p99时以状态码1退出，可以作为发布前的检查
+public class LoginLoadTest {
+    private static final String CLIENT_ID = "loadtest";
+    private static final String ADMIN_CLIENT_ID = "loadtest-admin";
+    private static final String ADMIN_CLIENT_SECRET = "loadtest-secret";
+    private static final String REDIRECT_URI = "http://127.0.0.1/callback";
+    private static final String FLOW_ALIAS = "secret-question-browser";
+    private static final Pattern FORM_ACTION = Pattern.compile("<form[^>]*\\saction=\"([^\"]+)\"");
+    private static final Pattern STATEMENTS = Pattern.compile("^hibernate_statements_total\\{[^}]*status=\"prepared\"[^}]*}\\s+(\\S+)", Pattern.MULTILINE);
+
+    private final Map<String, String> options;
+    private final String url;
+    private final String managementUrl;
+    private final String realm;
+    private final int users;
+    private final boolean json;
+    private final HttpClient http = HttpClient.newBuilder()
+            .followRedirects(HttpClient.Redirect.NEVER)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    private LoginLoadTest(Map<String, String> options) {
+        this.options = options;
+        this.url = option("url", "http://127.0.0.1:8080");
+        this.managementUrl = option("management-url", "http://127.0.0.1:9000");
+        this.realm = option("realm", "secret-question-loadtest");
+        this.users = Integer.parseInt(option("users", "1000"));
+        this.json = Boolean.parseBoolean(option("json", "false"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) throw new IllegalArgumentException("参数格式应为--name=value：" + arg);
+            int eq = arg.indexOf('=');
+            options.put(eq < 0 ? arg.substring(2) : arg.substring(2, eq), eq < 0 ? "true" : arg.substring(eq + 1));
+        }
+        LoginLoadTest test = new LoginLoadTest(options);
+        Process keycloak = options.containsKey("kc-home") ? test.startKeycloak() : null;
+        try {
+            test.waitUntilReady();
+            test.seed();
+            boolean passed = test.run();
+            if (!passed) System.exit(1);
+        } finally {
+            if (keycloak != null) stopKeycloak(keycloak);
+        }
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    // 把插件jar复制到providers目录，以开发模式启动Keycloak，管理员账号由环境变量创建
+    private Process startKeycloak() throws IOException {
+        Path home = Path.of(options.get("kc-home"));
+        String provider = options.get("provider");
+        if (provider != null) {
+            Path jar = Path.of(provider);
+            Files.copy(jar, home.resolve("providers").resolve(jar.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+        }
+        int port = URI.create(url).getPort();
+        ProcessBuilder builder = new ProcessBuilder(home.resolve("bin").resolve("kc.sh").toString(), "start-dev",
+                "--http-port=" + (port < 0 ? 8080 : port), "--metrics-enabled=true", "--db=dev-file")
+                .redirectErrorStream(true)
+                .redirectOutput(home.resolve("data").resolve("loadtest-server.log").toFile());
+        Files.createDirectories(home.resolve("data"));
+        builder.environment().put("KC_BOOTSTRAP_ADMIN_USERNAME", option("admin-user", "admin"));
+        builder.environment().put("KC_BOOTSTRAP_ADMIN_PASSWORD", option("admin-password", "admin"));
+        System.out.println("启动Keycloak：" + home + "，日志输出到data/loadtest-server.log");
+        return builder.start();
+    }
+
+    private static void stopKeycloak(Process keycloak) throws InterruptedException {
+        keycloak.descendants().forEach(ProcessHandle::destroy);
+        keycloak.destroy();
+        if (!keycloak.waitFor(30, TimeUnit.SECONDS)) {
+            keycloak.descendants().forEach(ProcessHandle::destroyForcibly);
+            keycloak.destroyForcibly();
+        }
+    }
+
+    // 等待master领域可以访问，开发模式首次启动需要构建，最多等待5分钟
+    private void waitUntilReady() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(5);
+        while (System.nanoTime() < deadline) {
+            try {
+                if (send(get(url + "/realms/master")).statusCode() == 200) return;
+            } catch (IOException e) {
+                // 尚未开始监听
+            }
+            Thread.sleep(1000);
+        }
+        throw new IllegalStateException("Keycloak未能在5分钟内就绪：" + url);
+    }
+
+    // 重建测试领域，然后分批导入用户和密保问题，用户i的答案为answer-i
+    private void seed() throws Exception {
+        long started = System.nanoTime();
+        String adminToken = token("master", "password", Map.of(
+                "client_id", "admin-cli",
+                "username", option("admin-user", "admin"),
+                "password", option("admin-password", "admin")));
+        send(authorized(HttpRequest.newBuilder(URI.create(url + "/admin/realms/" + realm)).DELETE(), adminToken));
+        expect(send(authorized(jsonPost(url + "/admin/realms", realmRepresentation()), adminToken)), 201, "创建领域");
+
+        for (int from = 0; from < users; from += 500) {
+            List<UserRepresentation> batch = new ArrayList<>();
+            for (int i = from; i < Math.min(users, from + 500); i++) batch.add(user(i));
+            Map<String, Object> partialImport = new LinkedHashMap<>();
+            partialImport.put("ifResourceExists", "SKIP");
+            partialImport.put("users", batch);
+            expect(send(authorized(jsonPost(url + "/admin/realms/" + realm + "/partialImport", partialImport), adminToken)), 200, "导入用户");
+        }
+
+        String importToken = token(realm, "client_credentials", Map.of("client_id", ADMIN_CLIENT_ID, "client_secret", ADMIN_CLIENT_SECRET));
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < users; i++) {
+            ndjson.append(JsonSerialization.writeValueAsString(new SecretQuestionImportRecord(username(i), "loadtest", answer(i)))).append('\n');
+        }
+        HttpResponse<String> response = send(authorized(HttpRequest.newBuilder(URI.create(url + "/realms/" + realm + "/secret-question/credentials/import"))
+                .header("Content-Type", "application/x-ndjson")
+                .POST(HttpRequest.BodyPublishers.ofString(ndjson.toString())), importToken));
+        expect(response, 200, "导入密保问题");
+        long errors = response.body().lines().filter(line -> line.contains("\"type\":\"error\"")).count();
+        if (errors > 0) throw new IllegalStateException("导入密保问题时有" + errors + "条错误：" + response.body());
+        System.out.printf("领域%s已就绪：%d个用户，耗时%ds%n", realm, users, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started));
+    }
+
+    private RealmRepresentation realmRepresentation() {
+        RealmRepresentation rep = new RealmRepresentation();
+        rep.setRealm(realm);
+        rep.setEnabled(true);
+        rep.setBrowserFlow(FLOW_ALIAS);
+
+        AuthenticatorConfigRepresentation config = new AuthenticatorConfigRepresentation();
+        config.setAlias("secret-question-loadtest");
+        // 每个用户都会被反复登录，关闭错误次数限制以免测试中途被锁定
+        config.setConfig(Map.of(SecretQuestionAuthenticatorFactory.ATTEMPT_LIMIT_MAX, "0",
+                SecretQuestionAuthenticatorFactory.ATTEMPT_LIMIT_USER_MAX, "0"));
+        rep.setAuthenticatorConfig(List.of(config));
+
+        AuthenticationFlowRepresentation flow = new AuthenticationFlowRepresentation();
+        flow.setAlias(FLOW_ALIAS);
+        flow.setProviderId("basic-flow");
+        flow.setTopLevel(true);
+        flow.setBuiltIn(false);
+        flow.setAuthenticationExecutions(List.of(
+                execution("auth-username-form", 10, null),
+                execution(SecretQuestionAuthenticatorFactory.PROVIDER_ID, 20, config.getAlias())));
+        rep.setAuthenticationFlows(List.of(flow));
+
+        ClientRepresentation client = new ClientRepresentation();
+        client.setClientId(CLIENT_ID);
+        client.setPublicClient(true);
+        client.setStandardFlowEnabled(true);
+        client.setRedirectUris(List.of(REDIRECT_URI));
+        ClientRepresentation admin = new ClientRepresentation();
+        admin.setClientId(ADMIN_CLIENT_ID);
+        admin.setPublicClient(false);
+        admin.setSecret(ADMIN_CLIENT_SECRET);
+        admin.setStandardFlowEnabled(false);
+        admin.setServiceAccountsEnabled(true);
+        rep.setClients(List.of(client, admin));
+
+        UserRepresentation serviceAccount = new UserRepresentation();
+        serviceAccount.setUsername("service-account-" + ADMIN_CLIENT_ID);
+        serviceAccount.setEnabled(true);
+        serviceAccount.setServiceAccountClientId(ADMIN_CLIENT_ID);
+        serviceAccount.setClientRoles(Map.of("realm-management", List.of("manage-users")));
+        rep.setUsers(List.of(serviceAccount));
+        return rep;
+    }
+
+    private static AuthenticationExecutionExportRepresentation execution(String authenticator, int priority, String config) {
+        AuthenticationExecutionExportRepresentation execution = new AuthenticationExecutionExportRepresentation();
+        execution.setAuthenticator(authenticator);
+        execution.setRequirement("REQUIRED");
+        execution.setPriority(priority);
+        execution.setAuthenticatorFlow(false);
+        execution.setUserSetupAllowed(false);
+        execution.setAuthenticatorConfig(config);
+        return execution;
+    }
+
+    // 填写用户资料中的必填项，避免登录时被要求补全资料
+    private static UserRepresentation user(int i) {
+        UserRepresentation user = new UserRepresentation();
+        user.setUsername(username(i));
+        user.setEnabled(true);
+        user.setEmail(username(i) + "@example.org");
+        user.setEmailVerified(true);
+        user.setFirstName("Load");
+        user.setLastName("Test " + i);
+        return user;
+    }
+
+    private static String username(int i) {
+        return "user-" + i;
+    }
+
+    private static String answer(int i) {
+        return "answer-" + i;
+    }
+
+    // 先预热再统计，每个线程轮流使用不同的用户；统计期间前后各读取一次SQL语句计数
+    private boolean run() throws Exception {
+        int threads = Integer.parseInt(option("threads", String.valueOf(Runtime.getRuntime().availableProcessors() * 2)));
+        long warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("warmup", "10")));
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("duration", "60")));
+        AtomicLong errors = new AtomicLong();
+        AtomicLong nextUser = new AtomicLong();
+        System.out.printf("%d个线程，预热%ds，统计%ds，%s挑战%n", threads, TimeUnit.NANOSECONDS.toSeconds(warmupNanos),
+                TimeUnit.NANOSECONDS.toSeconds(durationNanos), json ? "JSON" : "HTML");
+
+        long start = System.nanoTime();
+        long measureFrom = start + warmupNanos;
+        long measureTo = measureFrom + durationNanos;
+        Double statementsBefore = null;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<long[]>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            results.add(pool.submit(() -> {
+                long[] latencies = new long[1024];
+                int count = 0;
+                while (true) {
+                    long begin = System.nanoTime();
+                    if (begin >= measureTo) break;
+                    boolean ok = login((int) (nextUser.getAndIncrement() % users));
+                    long end = System.nanoTime();
+                    if (begin < measureFrom) continue;
+                    if (!ok) {
+                        errors.incrementAndGet();
+                        continue;
+                    }
+                    if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+                    latencies[count++] = end - begin;
+                }
+                return Arrays.copyOf(latencies, count);
+            }));
+        }
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(Math.max(0, measureFrom - System.nanoTime())));
+        statementsBefore = preparedStatements();
+        long[] all = new long[0];
+        for (Future<long[]> result : results) {
+            long[] latencies = result.get();
+            int offset = all.length;
+            all = Arrays.copyOf(all, offset + latencies.length);
+            System.arraycopy(latencies, 0, all, offset, latencies.length);
+        }
+        Double statementsAfter = preparedStatements();
+        pool.shutdown();
+        return report(all, errors.get(), durationNanos, statementsBefore, statementsAfter);
+    }
+
+    private boolean report(long[] latencies, long errors, long durationNanos, Double statementsBefore, Double statementsAfter) {
+        Arrays.sort(latencies);
+        double seconds = durationNanos / 1e9;
+        System.out.printf("成功登录：%d，失败：%d%n", latencies.length, errors);
+        System.out.printf("每秒登录数：%.1f%n", latencies.length / seconds);
+        System.out.printf("延迟/ms：p50 %.2f，p99 %.2f，p99.9 %.2f，最大 %.2f%n",
+                percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 0.999), percentile(latencies, 1.0));
+        if (statementsBefore != null && statementsAfter != null && latencies.length > 0) {
+            // 统计期间所有请求（包括失败的登录）执行的语句都计入
+            System.out.printf("每次登录SQL语句数：%.1f%n", (statementsAfter - statementsBefore) / (latencies.length + errors));
+        } else {
+            System.out.println("每次登录SQL语句数：n/a");
+        }
+        boolean passed = errors == 0 && latencies.length > 0;
+        String maxP99 = options.get("max-p99");
+        if (maxP99 != null && percentile(latencies, 0.99) > Double.parseDouble(maxP99)) {
+            System.out.println("p99超过上限" + maxP99 + "ms");
+            passed = false;
+        }
+        System.out.println(passed ? "通过" : "未通过");
+        return passed;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    // 管理端口/metrics中Hibernate已准备的语句总数，未开启统计时返回null
+    private Double preparedStatements() {
+        try {
+            HttpResponse<String> response = send(get(managementUrl + "/metrics"));
+            if (response.statusCode() != 200) return null;
+            Matcher matcher = STATEMENTS.matcher(response.body());
+            double total = 0;
+            boolean found = false;
+            while (matcher.find()) {
+                total += Double.parseDouble(matcher.group(1));
+                found = true;
+            }
+            return found ? total : null;
+        } catch (IOException | InterruptedException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // 完整登录一次，每次使用新的Cookie，所以不会因为已回答过问题的Cookie而跳过；最终重定向到客户端并带有授权码即为成功
+    private boolean login(int i) {
+        Map<String, String> cookies = new LinkedHashMap<>();
+        try {
+            String authUrl = url + "/realms/" + realm + "/protocol/openid-connect/auth?client_id=" + CLIENT_ID
+                    + "&response_type=code&scope=openid&redirect_uri=" + encode(REDIRECT_URI);
+            HttpResponse<String> page = exchange(get(authUrl), cookies);
+            if (page.statusCode() != 200) return false;
+            HttpRequest.Builder username = form(formAction(page.body()), Map.of("username", username(i)));
+            if (json) username.header("Accept", "application/json");
+            HttpResponse<String> challenge = exchange(username, cookies);
+            if (challenge.statusCode() != 200) return false;
+            Map<String, String> answer = new HashMap<>();
+            answer.put("secret_answer", answer(i));
+            String action;
+            if (json) {
+                Map<?, ?> body = JsonSerialization.readValue(challenge.body(), Map.class);
+                action = (String) body.get("action");
+                if (body.get("credentialId") != null) answer.put("credentialId", (String) body.get("credentialId"));
+            } else {
+                action = formAction(challenge.body());
+            }
+            HttpResponse<String> done = exchange(form(action, answer), cookies);
+            String location = done.headers().firstValue("Location").orElse("");
+            return done.statusCode() == 302 && location.startsWith(REDIRECT_URI) && location.contains("code=");
+        } catch (IOException | RuntimeException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // 发送请求并维护本次登录的Cookie
+    private HttpResponse<String> exchange(HttpRequest.Builder request, Map<String, String> cookies) throws IOException, InterruptedException {
+        if (!cookies.isEmpty()) {
+            StringBuilder header = new StringBuilder();
+            cookies.forEach((name, value) -> header.append(header.length() == 0 ? "" : "; ").append(name).append('=').append(value));
+            request.header("Cookie", header.toString());
+        }
+        HttpResponse<String> response = send(request);
+        for (String setCookie : response.headers().allValues("Set-Cookie")) {
+            String pair = setCookie.split(";", 2)[0];
+            int eq = pair.indexOf('=');
+            if (eq <= 0) continue;
+            String value = pair.substring(eq + 1);
+            if (value.isEmpty() || setCookie.toLowerCase().contains("max-age=0")) {
+                cookies.remove(pair.substring(0, eq));
+            } else {
+                cookies.put(pair.substring(0, eq), value);
+            }
+        }
+        return response;
+    }
+
+    private String token(String tokenRealm, String grantType, Map<String, String> parameters) throws Exception {
+        Map<String, String> form = new HashMap<>(parameters);
+        form.put("grant_type", grantType);
+        HttpResponse<String> response = send(form(url + "/realms/" + tokenRealm + "/protocol/openid-connect/token", form));
+        expect(response, 200, "获取令牌");
+        return (String) JsonSerialization.readValue(response.body(), Map.class).get("access_token");
+    }
+
+    private HttpResponse<String> send(HttpRequest.Builder request) throws IOException, InterruptedException {
+        return http.send(request.timeout(Duration.ofSeconds(30)).build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static HttpRequest.Builder get(String uri) {
+        return HttpRequest.newBuilder(URI.create(uri)).GET();
+    }
+
+    private static HttpRequest.Builder form(String uri, Map<String, String> parameters) {
+        StringBuilder body = new StringBuilder();
+        parameters.forEach((name, value) -> body.append(body.length() == 0 ? "" : "&").append(encode(name)).append('=').append(encode(value)));
+        return HttpRequest.newBuilder(URI.create(uri))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString()));
+    }
+
+    private static HttpRequest.Builder jsonPost(String uri, Object body) throws IOException {
+        return HttpRequest.newBuilder(URI.create(uri))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(JsonSerialization.writeValueAsString(body)));
+    }
+
+    private static HttpRequest.Builder authorized(HttpRequest.Builder request, String token) {
+        return request.header("Authorization", "Bearer " + token);
+    }
+
+    private static void expect(HttpResponse<String> response, int status, String step) {
+        if (response.statusCode() != status) {
+            throw new IllegalStateException(step + "失败：HTTP " + response.statusCode() + " " + response.body());
+        }
+    }
+
+    // 登录页面中表单的提交地址
+    private static String formAction(String html) {
+        Matcher matcher = FORM_ACTION.matcher(html);
+        if (!matcher.find()) throw new IllegalStateException("页面中没有表单");
+        return matcher.group(1).replace("&amp;", "&");
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,154 @@
+package org.keycloak.example.authenticator.benchmark;
+
+import jakarta.ws.rs.core.MediaType;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.example.authenticator.*;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 完整认证路径的基准：action()、validateAnswer()、Provider.isValid()，单线程和多线程（共享缓存与哈希线程池）两种场景
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SecretQuestionAuthenticatorBenchmark {
+
+    // 所有线程共享的部分：解码缓存、领域、哈希线程池
+    @State(Scope.Benchmark)
+    public static class Shared {
+        @Param({"10000"})
+        public int cacheMaxSize;
+
+        @Param({"5"})
+        public long hashLatencyBudget;
+
+        public SecretQuestionCredentialCache cache;
+        public RealmModel realm;
+        public final AtomicInteger users = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            SecretQuestionHasher hasher = SecretQuestionHasher.getInstance();
+            hasher.configure(Runtime.getRuntime().availableProcessors(), 1024, 5000);
+            hasher.calibrate(hashLatencyBudget);
+            cache = new SecretQuestionCredentialCache(cacheMaxSize, TimeUnit.MINUTES.toMillis(5));
+            realm = InMemoryKeycloak.realm("bench");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            SecretQuestionHasher.getInstance().shutdown();
+        }
+    }
+
+    // 每个线程一个用户、一个会话和一个流程上下文，避免线程之间互相干扰
+    @State(Scope.Thread)
+    public static class Login {
+        public KeycloakSession session;
+        public UserModel user;
+        public InMemoryKeycloak.Flow flow;
+        public String credentialId;
+
+        @Setup(Level.Trial)
+        public void setUp(Shared shared) {
+            Map<String, CredentialModel> store = InMemoryKeycloak.newStore();
+            user = InMemoryKeycloak.user("user-" + shared.users.incrementAndGet(), store);
+            session = InMemoryKeycloak.session(shared.cache);
+            SecretQuestionCredentialProvider provider = provider(session);
+            credentialId = provider.createCredential(shared.realm, user, SecretQuestionCredentialModel.createSecretQuestion("你姓什么？", "张")).getId();
+            flow = new InMemoryKeycloak.Flow(session, shared.realm, user);
+            // 关闭错误次数限制，使错误答案的基准测量完整的验证路径而不是锁定路径
+            flow.config.getConfig().put(SecretQuestionAuthenticatorFactory.ATTEMPT_LIMIT_MAX, "0");
+            flow.config.getConfig().put(SecretQuestionAuthenticatorFactory.ATTEMPT_LIMIT_USER_MAX, "0");
+        }
+    }
+
+    // 暴露受保护的validateAnswer()
+    static class ExposedAuthenticator extends SecretQuestionAuthenticator {
+        boolean validate(AuthenticationFlowContext context) {
+            return validateAnswer(context, selectedCredentialId(context));
+        }
+    }
+
+    private static final ExposedAuthenticator AUTHENTICATOR = new ExposedAuthenticator();
+
+    private static SecretQuestionCredentialProvider provider(KeycloakSession session) {
+        return AUTHENTICATOR.getCredentialProvider(session);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String actionCorrectAnswer(Shared shared, Login login) {
+        login.flow.submit(login.credentialId, "张");
+        AUTHENTICATOR.action(login.flow.context);
+        return login.flow.status;
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String actionCorrectAnswerContended(Shared shared, Login login) {
+        login.flow.submit(login.credentialId, "张");
+        AUTHENTICATOR.action(login.flow.context);
+        return login.flow.status;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String actionWrongAnswer(Shared shared, Login login) {
+        login.flow.submit(login.credentialId, "李");
+        AUTHENTICATOR.action(login.flow.context);
+        return login.flow.status;
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String actionWrongAnswerContended(Shared shared, Login login) {
+        login.flow.submit(login.credentialId, "李");
+        AUTHENTICATOR.action(login.flow.context);
+        return login.flow.status;
+    }
+
+    // JSON挑战模式下的错误答案，挑战以JSON返回而不是渲染页面
+    @Benchmark
+    @Threads(1)
+    public String actionWrongAnswerJson(Shared shared, Login login) {
+        login.flow.accept.add(MediaType.APPLICATION_JSON_TYPE);
+        try {
+            login.flow.submit(login.credentialId, "李");
+            AUTHENTICATOR.action(login.flow.context);
+            return login.flow.status;
+        } finally {
+            login.flow.accept.clear();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean validateAnswer(Shared shared, Login login) {
+        login.flow.submit(login.credentialId, "张");
+        return AUTHENTICATOR.validate(login.flow.context);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean isValid(Shared shared, Login login) {
+        UserCredentialModel input = new UserCredentialModel(login.credentialId, SecretQuestionCredentialModel.TYPE, "张");
+        return provider(login.session).isValid(shared.realm, login.user, input);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean isValidContended(Shared shared, Login login) {
+        UserCredentialModel input = new UserCredentialModel(login.credentialId, SecretQuestionCredentialModel.TYPE, "张");
+        return provider(login.session).isValid(shared.realm, login.user, input);
+    }
+}
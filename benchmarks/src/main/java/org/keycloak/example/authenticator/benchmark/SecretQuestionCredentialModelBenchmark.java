@@ -0,0 +1,90 @@
+package org.keycloak.example.authenticator.benchmark;
+
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.example.authenticator.SecretQuestionCredentialCache;
+import org.keycloak.example.authenticator.SecretQuestionCredentialModel;
+import org.keycloak.example.authenticator.SecretQuestionHasher;
+import org.keycloak.example.authenticator.dto.SecretQuestionSecretData;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// Credential编码/解码的基准：从存储区格式解码（问题和答案都解码，或登录路径只解码答案）、经缓存解码、创建新问题（包含答案哈希）
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SecretQuestionCredentialModelBenchmark {
+
+    // 每次验证的哈希耗时预算/毫秒，影响createSecretQuestion的开销
+    @Param({"5"})
+    public long hashLatencyBudget;
+
+    private CredentialModel stored;
+    private SecretQuestionCredentialCache cache;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SecretQuestionHasher.getInstance().calibrate(hashLatencyBudget);
+        SecretQuestionCredentialModel created = SecretQuestionCredentialModel.createSecretQuestion("你姓什么？", "张");
+        stored = new CredentialModel();
+        stored.setId("bench-credential");
+        stored.setType(created.getType());
+        stored.setCreatedDate(created.getCreatedDate());
+        stored.setCredentialData(created.getCredentialData());
+        stored.setSecretData(created.getSecretData());
+        cache = new SecretQuestionCredentialCache(10000, TimeUnit.MINUTES.toMillis(5));
+    }
+
+    // Model按需解码，只构造Model不会解码任何字段，所以读取两个字段并交给Blackhole，衡量完整的解码开销
+    @Benchmark
+    @Threads(1)
+    public void createFromCredentialModel(Blackhole bh) {
+        decodeAll(SecretQuestionCredentialModel.createFromCredentialModel(stored), bh);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void createFromCredentialModelContended(Blackhole bh) {
+        decodeAll(SecretQuestionCredentialModel.createFromCredentialModel(stored), bh);
+    }
+
+    // 登录路径：isValid()只读取答案，不解码问题
+    @Benchmark
+    @Threads(1)
+    public SecretQuestionSecretData decodeSecretOnly() {
+        return SecretQuestionCredentialModel.createFromCredentialModel(stored).getSecretQuestionSecretData();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public SecretQuestionSecretData decodeSecretOnlyContended() {
+        return SecretQuestionCredentialModel.createFromCredentialModel(stored).getSecretQuestionSecretData();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void cachedDecode(Blackhole bh) {
+        decodeAll(cache.get(stored), bh);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void cachedDecodeContended(Blackhole bh) {
+        decodeAll(cache.get(stored), bh);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public SecretQuestionCredentialModel createSecretQuestion() {
+        return SecretQuestionCredentialModel.createSecretQuestion("你姓什么？", "张");
+    }
+
+    private static void decodeAll(SecretQuestionCredentialModel sqcm, Blackhole bh) {
+        bh.consume(sqcm.getSecretQuestionCredentialData());
+        bh.consume(sqcm.getSecretQuestionSecretData());
+    }
+}
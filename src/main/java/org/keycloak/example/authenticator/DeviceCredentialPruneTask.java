@@ -0,0 +1,174 @@
+package org.keycloak.example.authenticator;
+
+import com.DeviceAuthApi.DeviceAuthConstants;
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.credential.CredentialProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.ScheduledTask;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+// 定时清理过期的设备凭据：每次答对问题并由DeviceAuth转来时都会注册设备，旧设备从不删除，用户的凭据列表会越来越长
+// 注册时间超过maxAgeMillis的设备，以及每个用户超过maxPerUser个（按注册时间保留最新的）的设备会被删除
+// DeviceAuth凭据没有记录最后使用时间，按时间清理只能按注册时间，会删除最近仍在使用的旧设备，所以默认只按每个用户的数量上限清理，
+// 整个任务也默认关闭，由SPI配置devicePruneEnabled开启，devicePruneMaxAge大于0时才按注册时间清理
+// 由TimerProvider定时触发，集群中同一时刻只有一个节点执行；按用户Id对持有DeviceAuth凭据的用户做键集分页，
+// 每页用户一个事务，按opsPerSecond限速，每次执行最多删除maxDeletesPerRun个
+// 游标和完成时间各自在短事务中写入领域属性，每页一次，不借用外层的长事务
+public class DeviceCredentialPruneTask implements ScheduledTask {
+    private static final Logger logger = Logger.getLogger(DeviceCredentialPruneTask.class);
+
+    public static final String TASK_NAME = "secret-question-device-prune";
+    // 领域属性：已处理到的最后一个用户Id；上一轮完整扫描结束的时间/毫秒
+    static final String CURSOR_ATTRIBUTE = "secretQuestionDevicePruneUserCursor";
+    // 旧版本按偏移分页时的游标，含义不同，不再读取，扫描完成时清除
+    static final String LEGACY_CURSOR_ATTRIBUTE = "secretQuestionDevicePruneCursor";
+    static final String COMPLETED_ATTRIBUTE = "secretQuestionDevicePruneCompleted";
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final long intervalMillis;
+    private final long maxAgeMillis;
+    private final int maxPerUser;
+    private final int batchSize;
+    private final int maxDeletesPerRun;
+    private final SecretQuestionPacer pacer;
+
+    private final AtomicLong lastRunDeleted = new AtomicLong();
+    private final AtomicLong totalDeleted = new AtomicLong();
+
+    public DeviceCredentialPruneTask(KeycloakSessionFactory sessionFactory, long intervalMillis, long maxAgeMillis, int maxPerUser,
+                                     int batchSize, int maxDeletesPerRun, int opsPerSecond) {
+        this.sessionFactory = sessionFactory;
+        this.intervalMillis = intervalMillis;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxPerUser = maxPerUser;
+        this.batchSize = batchSize;
+        this.maxDeletesPerRun = maxDeletesPerRun;
+        this.pacer = new SecretQuestionPacer(opsPerSecond);
+    }
+
+    @Override
+    public String getTaskName() {
+        return TASK_NAME;
+    }
+
+    // 每次执行最多运行半个间隔；一个领域完整扫描一遍后，一个间隔内不再扫描，避免前面的大领域占满每次执行
+    // 外层事务只用于列出需要扫描的领域
+    @Override
+    public void run(KeycloakSession session) {
+        long startedAt = Time.currentTimeMillis();
+        long deadline = startedAt + intervalMillis / 2;
+        long[] deleted = {0};
+        List<String> realmIds = session.realms().getRealmsStream()
+                .filter(realm -> startedAt - parseLong(realm.getAttribute(COMPLETED_ATTRIBUTE)) >= intervalMillis)
+                .map(RealmModel::getId)
+                .collect(Collectors.toList());
+        for (String realmId : realmIds) {
+            if (Time.currentTimeMillis() >= deadline || deleted[0] >= maxDeletesPerRun) break;
+            pruneRealm(realmId, deadline, deleted);
+        }
+        lastRunDeleted.set(deleted[0]);
+        totalDeleted.addAndGet(deleted[0]);
+        logger.infof("设备凭据清理完成：本次删除%d个，耗时%dms", deleted[0], Time.currentTimeMillis() - startedAt);
+    }
+
+    // 每页处理完成后在短事务中推进游标，领域缓存每页只失效一次；节点中途退出或事务失败时最多重复处理一页
+    private void pruneRealm(String realmId, long deadline, long[] deleted) {
+        String cursor = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            return realm == null ? null : realm.getAttribute(CURSOR_ATTRIBUTE);
+        });
+        while (Time.currentTimeMillis() < deadline && deleted[0] < maxDeletesPerRun) {
+            pacer.acquire(1);
+            String after = cursor;
+            List<String> userIds = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                if (realm == null) return null;
+                CredentialProvider<?> dacp = session.getProvider(CredentialProvider.class, DeviceAuthConstants.credentialProviderFactoryID);
+                if (dacp == null) return null;
+                return SecretQuestionCredentialProvider.getCredentialHolderPage(session, realm, dacp.getType(), after, batchSize);
+            });
+            if (userIds == null) return;
+            if (userIds.isEmpty()) {
+                SecretQuestionTransactions.updateRealm(sessionFactory, realmId, realm -> {
+                    realm.removeAttribute(CURSOR_ATTRIBUTE);
+                    realm.removeAttribute(LEGACY_CURSOR_ATTRIBUTE);
+                    realm.setAttribute(COMPLETED_ATTRIBUTE, String.valueOf(Time.currentTimeMillis()));
+                });
+                return;
+            }
+            try {
+                deleted[0] += pruneBatch(realmId, userIds, maxDeletesPerRun - deleted[0]);
+            } catch (RuntimeException e) {
+                // 事务失败时不推进游标，下次执行时重试这一页
+                logger.warnf(e, "领域%s的设备凭据清理批次失败", realmId);
+                return;
+            }
+            // 达到本次删除上限时这一页可能还没处理完，不推进游标
+            if (deleted[0] >= maxDeletesPerRun) return;
+            cursor = userIds.get(userIds.size() - 1);
+            String next = cursor;
+            SecretQuestionTransactions.updateRealm(sessionFactory, realmId, realm -> realm.setAttribute(CURSOR_ATTRIBUTE, next));
+        }
+    }
+
+    // 一批用户一个事务，返回删除的数量；最多删除budget个，剩余的留到下次执行
+    private long pruneBatch(String realmId, List<String> userIds, long budget) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            if (realm == null) return 0L;
+            session.getContext().setRealm(realm);
+            CredentialProvider<?> dacp = session.getProvider(CredentialProvider.class, DeviceAuthConstants.credentialProviderFactoryID);
+            if (dacp == null) return 0L;
+            long cutoff = maxAgeMillis > 0 ? Time.currentTimeMillis() - maxAgeMillis : Long.MIN_VALUE;
+            long count = 0;
+            for (String userId : userIds) {
+                if (count >= budget) break;
+                pacer.acquire(1);
+                UserModel user = session.users().getUserById(realm, userId);
+                if (user == null) continue;
+                // 按注册时间从新到旧排列，超出上限或早于截止时间的都是待删除的
+                List<CredentialModel> devices = user.credentialManager().getStoredCredentialsByTypeStream(dacp.getType())
+                        .sorted(Comparator.comparing(DeviceCredentialPruneTask::createdDate).reversed())
+                        .collect(Collectors.toList());
+                for (int i = 0; i < devices.size() && count < budget; i++) {
+                    CredentialModel device = devices.get(i);
+                    if ((maxPerUser <= 0 || i < maxPerUser) && createdDate(device) >= cutoff) continue;
+                    pacer.acquire(1);
+                    if (dacp.deleteCredential(realm, user, device.getId())) count++;
+                }
+            }
+            return count;
+        });
+    }
+
+    private static long createdDate(CredentialModel credential) {
+        return credential.getCreatedDate() == null ? 0L : credential.getCreatedDate();
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) return 0L;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+    public long getLastRunDeleted() {
+        return lastRunDeleted.get();
+    }
+
+    public long getTotalDeleted() {
+        return totalDeleted.get();
+    }
+}
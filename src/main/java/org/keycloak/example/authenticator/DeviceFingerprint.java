@@ -0,0 +1,37 @@
+package org.keycloak.example.authenticator;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+// 设备指纹工具，由cpuid和visitorId确定性地得到设备标识，同一台设备每次得到的结果相同
+// 结果作为DeviceAuth凭据的名称保存，这样查找设备是否已注册只需要一次按名称和类型的索引查询
+public class DeviceFingerprint {
+    public static final String LABEL_PREFIX = "device-";
+
+    private DeviceFingerprint() {
+    }
+
+    public static String of(String cpuid, String visitorId) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(nullToEmpty(cpuid).getBytes(StandardCharsets.UTF_8));
+            // 分隔符避免 ("ab","c") 与 ("a","bc") 得到相同的指纹
+            digest.update((byte) 0);
+            digest.update(nullToEmpty(visitorId).getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // DeviceAuth凭据的名称
+    public static String label(String cpuid, String visitorId) {
+        return LABEL_PREFIX + of(cpuid, visitorId);
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
+}
@@ -0,0 +1,157 @@
+package org.keycloak.example.authenticator;
+
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotAuthorizedException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.jboss.logging.Logger;
+import org.keycloak.credential.CredentialProvider;
+import org.keycloak.example.authenticator.dto.SecretQuestionCredentialStatus;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resources.admin.AdminAuth;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+import org.keycloak.services.resources.admin.permissions.AdminPermissions;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// 密保问题的管理接口，挂载在 /realms/{realm}/secret-question 下
+// 调用方需要携带本领域中具有manage-users（导入）或view-users（状态查询）权限的Bearer Token
+public class SecretQuestionAdminResource implements RealmResourceProvider {
+    private static final Logger logger = Logger.getLogger(SecretQuestionAdminResource.class);
+    public static final String NDJSON = "application/x-ndjson";
+
+    private final KeycloakSession session;
+    private final int defaultBatchSize;
+    private final int maxBatchSize;
+    private final int defaultPageSize;
+    private final int maxPageSize;
+
+    public SecretQuestionAdminResource(KeycloakSession session, int defaultBatchSize, int maxBatchSize, int defaultPageSize, int maxPageSize) {
+        this.session = session;
+        this.defaultBatchSize = defaultBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.defaultPageSize = defaultPageSize;
+        this.maxPageSize = maxPageSize;
+    }
+
+    @Override
+    public Object getResource() {
+        return this;
+    }
+
+    // 批量导入密保问题，请求体每行一条{"username","question","answer"}，响应逐行返回错误、进度和汇总
+    // batchSize为每个事务包含的记录数，resumeFrom为上次中断时最后一行进度中的line
+    @POST
+    @Path("credentials/import")
+    @Consumes({NDJSON, "text/plain"})
+    @Produces(NDJSON)
+    public StreamingOutput importCredentials(InputStream body, @QueryParam("batchSize") Integer batchSize, @QueryParam("resumeFrom") Long resumeFrom) {
+        RealmModel realm = session.getContext().getRealm();
+        permissions(realm).users().requireManage();
+        int size = batchSize == null || batchSize <= 0 ? defaultBatchSize : Math.min(batchSize, maxBatchSize);
+        SecretQuestionBulkImport bulkImport = new SecretQuestionBulkImport(session.getKeycloakSessionFactory(), realm.getId(), size, resumeFrom == null ? 0 : resumeFrom);
+        return output -> {
+            BufferedReader in = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+            Writer out = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            bulkImport.run(in, out);
+        };
+    }
+
+    // 批量查询用户是否已设置密保问题，按用户名顺序从cursor之后开始，每页一条查询、一个事务
+    // 每页输出一行{"type":"page","users":[...],"cursor":"<本页最后一个用户名>"}，最后输出一行汇总；中断后用最后一页的cursor继续
+    // pageSize为每页的用户数，limit为本次最多返回的用户数，不指定则直到最后一个用户
+    @GET
+    @Path("credentials/status")
+    @Produces(NDJSON)
+    public StreamingOutput credentialStatus(@QueryParam("cursor") String cursor, @QueryParam("pageSize") Integer pageSize, @QueryParam("limit") Long limit) {
+        RealmModel realm = session.getContext().getRealm();
+        permissions(realm).users().requireView();
+        int size = pageSize == null || pageSize <= 0 ? defaultPageSize : Math.min(pageSize, maxPageSize);
+        long max = limit == null || limit <= 0 ? Long.MAX_VALUE : limit;
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        String realmId = realm.getId();
+        return output -> {
+            Writer out = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            String next = cursor;
+            long count = 0;
+            boolean complete = false;
+            while (count < max) {
+                int want = (int) Math.min(size, max - count);
+                String after = next;
+                List<SecretQuestionCredentialStatus> users;
+                try {
+                    users = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, s -> {
+                        RealmModel r = s.realms().getRealm(realmId);
+                        s.getContext().setRealm(r);
+                        SecretQuestionCredentialProvider provider = (SecretQuestionCredentialProvider) s.getProvider(CredentialProvider.class, SecretQuestionCredentialProviderFactory.PROVIDER_ID);
+                        return provider.getCredentialStatusPage(r, after, want);
+                    });
+                } catch (RuntimeException e) {
+                    // 查询失败时结束输出，汇总中的cursor即为重试的起点
+                    logger.warnf(e, "领域%s的密保问题状态查询失败", realmId);
+                    break;
+                }
+                if (!users.isEmpty()) {
+                    next = users.get(users.size() - 1).getUsername();
+                    count += users.size();
+                    Map<String, Object> page = new LinkedHashMap<>();
+                    page.put("type", "page");
+                    page.put("users", users);
+                    page.put("cursor", next);
+                    write(out, page);
+                    // 每页写完立即发给客户端，服务端只保留当前一页
+                    out.flush();
+                }
+                if (users.size() < want) {
+                    complete = true;
+                    break;
+                }
+            }
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("type", "summary");
+            summary.put("count", count);
+            summary.put("cursor", next);
+            summary.put("complete", complete);
+            write(out, summary);
+            out.flush();
+        };
+    }
+
+    private static void write(Writer out, Map<String, Object> value) throws IOException {
+        out.write(JsonSerialization.writeValueAsString(value));
+        out.write('\n');
+    }
+
+    // 校验Bearer Token，返回本领域的管理权限，由调用方要求具体的权限
+    private AdminPermissionEvaluator permissions(RealmModel realm) {
+        AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+        if (auth == null) throw new NotAuthorizedException("Bearer");
+        AdminAuth adminAuth = new AdminAuth(realm, auth.getToken(), auth.getUser(), auth.getClient());
+        return AdminPermissions.evaluator(session, realm, adminAuth);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,51 @@
+package org.keycloak.example.authenticator;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+// 工厂类，生产密保问题管理接口，ID即为URL中 /realms/{realm}/ 之后的路径
+public class SecretQuestionAdminResourceProviderFactory implements RealmResourceProviderFactory {
+    public static final String PROVIDER_ID = "secret-question";
+
+    // 批量导入每个事务默认和最多包含的记录数，可通过SPI配置importBatchSize、importMaxBatchSize覆盖
+    private static final int DEFAULT_IMPORT_BATCH_SIZE = 500;
+    private static final int DEFAULT_IMPORT_MAX_BATCH_SIZE = 5000;
+
+    // 批量状态查询每页默认和最多包含的用户数，可通过SPI配置statusPageSize、statusMaxPageSize覆盖
+    private static final int DEFAULT_STATUS_PAGE_SIZE = 1000;
+    private static final int DEFAULT_STATUS_MAX_PAGE_SIZE = 10000;
+
+    private int importBatchSize = DEFAULT_IMPORT_BATCH_SIZE;
+    private int importMaxBatchSize = DEFAULT_IMPORT_MAX_BATCH_SIZE;
+    private int statusPageSize = DEFAULT_STATUS_PAGE_SIZE;
+    private int statusMaxPageSize = DEFAULT_STATUS_MAX_PAGE_SIZE;
+
+    @Override
+    public RealmResourceProvider create(KeycloakSession keycloakSession) {
+        return new SecretQuestionAdminResource(keycloakSession, importBatchSize, importMaxBatchSize, statusPageSize, statusMaxPageSize);
+    }
+
+    @Override
+    public void init(Config.Scope scope) {
+        importMaxBatchSize = Math.max(1, scope.getInt("importMaxBatchSize", DEFAULT_IMPORT_MAX_BATCH_SIZE));
+        importBatchSize = Math.min(Math.max(1, scope.getInt("importBatchSize", DEFAULT_IMPORT_BATCH_SIZE)), importMaxBatchSize);
+        statusMaxPageSize = Math.max(1, scope.getInt("statusMaxPageSize", DEFAULT_STATUS_MAX_PAGE_SIZE));
+        statusPageSize = Math.min(Math.max(1, scope.getInt("statusPageSize", DEFAULT_STATUS_PAGE_SIZE)), statusMaxPageSize);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
@@ -0,0 +1,106 @@
+package org.keycloak.example.authenticator;
+
+import org.keycloak.events.Details;
+import org.keycloak.events.Errors;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+// 审计事件，请求线程只填充几个字段放入缓冲区，转换为Keycloak的Event在后台写入线程中进行
+// 不包含任何答案内容，设备只记录指纹而不记录cpuid/visitorId原文
+public final class SecretQuestionAuditEvent {
+    public enum Type {
+        CHALLENGE_SHOWN,
+        ANSWER_REJECTED,
+        SUCCESS,
+        DEVICE_REGISTERED
+    }
+
+    // 转发给EventListenerProvider时，在详情中标记具体的审计类型
+    public static final String DETAIL_TYPE = "secret_question_event";
+
+    final Type type;
+    final long time;
+    final String realmId;
+    final String realmName;
+    final String clientId;
+    final String userId;
+    final String sessionId;
+    final String ipAddress;
+    final String credentialId;
+    final String device;
+    final String reason;
+
+    SecretQuestionAuditEvent(Type type, long time, String realmId, String realmName, String clientId, String userId,
+                             String sessionId, String ipAddress, String credentialId, String device, String reason) {
+        this.type = type;
+        this.time = time;
+        this.realmId = realmId;
+        this.realmName = realmName;
+        this.clientId = clientId;
+        this.userId = userId;
+        this.sessionId = sessionId;
+        this.ipAddress = ipAddress;
+        this.credentialId = credentialId;
+        this.device = device;
+        this.reason = reason;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    // 转换为EventListenerProvider可以处理的Event，只转发Keycloak自身不会产生对应事件的类型：
+    // ANSWER_REJECTED -> LOGIN_ERROR（failureChallenge()只计入暴力破解检测，不产生事件），锁定时错误为user_temporarily_disabled；
+    // DEVICE_REGISTERED -> UPDATE_CREDENTIAL；
+    // SUCCESS和CHALLENGE_SHOWN不转发，返回null：认证流程完成时Keycloak自己会产生LOGIN，出题不是登录事件，这两类只写入审计日志
+    public Event toEvent() {
+        EventType eventType = switch (type) {
+            case ANSWER_REJECTED -> EventType.LOGIN_ERROR;
+            case DEVICE_REGISTERED -> EventType.UPDATE_CREDENTIAL;
+            default -> null;
+        };
+        if (eventType == null) return null;
+        Event event = new Event();
+        event.setId(UUID.randomUUID().toString());
+        event.setTime(time);
+        event.setType(eventType);
+        event.setRealmId(realmId);
+        event.setRealmName(realmName);
+        event.setClientId(clientId);
+        event.setUserId(userId);
+        event.setSessionId(sessionId);
+        event.setIpAddress(ipAddress);
+        if (type == Type.ANSWER_REJECTED) {
+            event.setError("temporarily_locked".equals(reason) ? Errors.USER_TEMPORARILY_DISABLED : Errors.INVALID_USER_CREDENTIALS);
+        }
+        Map<String, String> details = new HashMap<>();
+        details.put(DETAIL_TYPE, type.name().toLowerCase());
+        details.put(Details.AUTH_METHOD, SecretQuestionAuthenticatorFactory.PROVIDER_ID);
+        if (type == Type.ANSWER_REJECTED) details.put(Details.CREDENTIAL_TYPE, SecretQuestionCredentialModel.TYPE);
+        if (credentialId != null) details.put(Details.CREDENTIAL_ID, credentialId);
+        if (device != null) details.put(Details.CREDENTIAL_USER_LABEL, device);
+        if (reason != null) details.put(Details.REASON, reason);
+        event.setDetails(details);
+        return event;
+    }
+
+    @Override
+    public String toString() {
+        return "type=" + type
+                + ", realm=" + realmName
+                + ", client=" + clientId
+                + ", user=" + userId
+                + ", ip=" + ipAddress
+                + (credentialId != null ? ", credentialId=" + credentialId : "")
+                + (device != null ? ", device=" + device : "")
+                + (reason != null ? ", reason=" + reason : "");
+    }
+}
@@ -0,0 +1,188 @@
+package org.keycloak.example.authenticator;
+
+import org.jboss.logging.Logger;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.common.util.Time;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// 审计事件管道：请求线程只把事件放入有界缓冲区（满了就丢弃并计数，不阻塞请求），
+// 后台写入线程按批取出，写入审计日志，并转发给领域配置的EventListenerProvider
+public class SecretQuestionAuditLog {
+    private static final Logger logger = Logger.getLogger(SecretQuestionAuditLog.class);
+    // 审计日志单独使用一个日志分类，方便单独配置输出
+    private static final Logger auditLogger = Logger.getLogger("org.keycloak.example.authenticator.audit");
+    private static final SecretQuestionAuditLog INSTANCE = new SecretQuestionAuditLog();
+
+    private volatile ArrayBlockingQueue<SecretQuestionAuditEvent> buffer = new ArrayBlockingQueue<>(8192);
+    private volatile int batchSize = 256;
+    // 挑战和成功事件的采样率，答案错误和设备注册事件总是记录
+    private volatile double sampleRate = 1.0;
+    private volatile boolean forwardToListeners = true;
+    private volatile KeycloakSessionFactory sessionFactory;
+    private volatile Thread writer;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+
+    private SecretQuestionAuditLog() {
+    }
+
+    public static SecretQuestionAuditLog getInstance() {
+        return INSTANCE;
+    }
+
+    public synchronized void configure(int bufferSize, int batchSize, double sampleRate, boolean forwardToListeners) {
+        if (writer == null) this.buffer = new ArrayBlockingQueue<>(bufferSize);
+        this.batchSize = batchSize;
+        this.sampleRate = Math.max(0.0, Math.min(1.0, sampleRate));
+        this.forwardToListeners = forwardToListeners;
+    }
+
+    // 在Factory的postInit()中启动后台写入线程
+    public synchronized void start(KeycloakSessionFactory sessionFactory) {
+        if (writer != null) return;
+        this.sessionFactory = sessionFactory;
+        Thread t = new Thread(this::drainLoop, "secret-question-audit-writer");
+        t.setDaemon(true);
+        t.start();
+        writer = t;
+    }
+
+    // 停止后台线程，并写出缓冲区中剩余的事件
+    public synchronized void stop() {
+        Thread t = writer;
+        if (t == null) return;
+        writer = null;
+        t.interrupt();
+        try {
+            t.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<SecretQuestionAuditEvent> rest = new ArrayList<>();
+        buffer.drainTo(rest);
+        write(rest);
+    }
+
+    // 解析采样率配置，格式错误或不在[0, 1]内时记录警告，使用默认值或截断到范围内，不影响服务器启动
+    public static double parseSampleRate(String value, double defaultValue) {
+        if (value == null || value.isBlank()) return defaultValue;
+        double rate;
+        try {
+            rate = Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warnf("auditSampleRate的值%s无效，使用默认值%s", value, defaultValue);
+            return defaultValue;
+        }
+        if (Double.isNaN(rate)) {
+            logger.warnf("auditSampleRate的值%s无效，使用默认值%s", value, defaultValue);
+            return defaultValue;
+        }
+        if (rate < 0.0 || rate > 1.0) {
+            double clamped = Math.max(0.0, Math.min(1.0, rate));
+            logger.warnf("auditSampleRate的值%s超出[0, 1]，按%s处理", value, clamped);
+            return clamped;
+        }
+        return rate;
+    }
+
+    public void emit(SecretQuestionAuditEvent.Type type, AuthenticationFlowContext context, String credentialId, String device, String reason) {
+        if (!sampled(type)) return;
+        RealmModel realm = context.getRealm();
+        UserModel user = context.getUser();
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        ClientModel client = authSession == null ? null : authSession.getClient();
+        SecretQuestionAuditEvent event = new SecretQuestionAuditEvent(type, Time.currentTimeMillis(),
+                realm.getId(), realm.getName(),
+                client == null ? null : client.getClientId(),
+                user == null ? null : user.getId(),
+                authSession == null || authSession.getParentSession() == null ? null : authSession.getParentSession().getId(),
+                context.getConnection() == null ? null : context.getConnection().getRemoteAddr(),
+                credentialId, device, reason);
+        if (!buffer.offer(event)) {
+            dropped.increment();
+        }
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getWritten() {
+        return written.sum();
+    }
+
+    private boolean sampled(SecretQuestionAuditEvent.Type type) {
+        if (type == SecretQuestionAuditEvent.Type.ANSWER_REJECTED || type == SecretQuestionAuditEvent.Type.DEVICE_REGISTERED) return true;
+        double rate = sampleRate;
+        return rate >= 1.0 || (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    private void drainLoop() {
+        List<SecretQuestionAuditEvent> batch = new ArrayList<>(batchSize);
+        while (writer == Thread.currentThread()) {
+            try {
+                batch.add(buffer.take());
+                buffer.drainTo(batch, batchSize - 1);
+                write(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                logger.warn("写入审计事件失败", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<SecretQuestionAuditEvent> batch) {
+        if (batch.isEmpty()) return;
+        if (auditLogger.isInfoEnabled()) {
+            for (SecretQuestionAuditEvent event : batch) {
+                auditLogger.info(event);
+            }
+        }
+        if (forwardToListeners && sessionFactory != null) {
+            forward(batch);
+        }
+        written.add(batch.size());
+    }
+
+    // 按领域分组，在一个事务中交给该领域启用的事件监听器；类型的对应关系见SecretQuestionAuditEvent.toEvent()
+    private void forward(List<SecretQuestionAuditEvent> batch) {
+        Map<String, List<Event>> byRealm = new LinkedHashMap<>();
+        for (SecretQuestionAuditEvent auditEvent : batch) {
+            Event event = auditEvent.toEvent();
+            if (event != null) byRealm.computeIfAbsent(auditEvent.getRealmId(), k -> new ArrayList<>()).add(event);
+        }
+        if (byRealm.isEmpty()) return;
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            for (Map.Entry<String, List<Event>> entry : byRealm.entrySet()) {
+                RealmModel realm = session.realms().getRealm(entry.getKey());
+                if (realm == null) continue;
+                realm.getEventsListenersStream().forEach(id -> {
+                    EventListenerProvider listener = session.getProvider(EventListenerProvider.class, id);
+                    if (listener == null) return;
+                    for (Event event : entry.getValue()) {
+                        listener.onEvent(event);
+                    }
+                });
+            }
+        });
+    }
+}
@@ -3,7 +3,9 @@ package org.keycloak.example.authenticator;
 import com.DeviceAuthApi.DeviceAuthConstants;
 import com.DeviceAuthApi.DeviceAuthCredentialModel;
 import com.DeviceAuthApi.DeviceAuthCredentialProvider;
+import jakarta.ws.rs.core.CacheControl;
 import jakarta.ws.rs.core.Cookie;
+import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.MultivaluedMap;
 import jakarta.ws.rs.core.NewCookie;
 import jakarta.ws.rs.core.Response;
@@ -12,14 +14,35 @@ import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.AuthenticationFlowError;
 import org.keycloak.authentication.Authenticator;
 import org.keycloak.authentication.CredentialValidator;
+import org.keycloak.credential.CredentialModel;
 import org.keycloak.credential.CredentialProvider;
+import org.keycloak.example.authenticator.dto.SecretQuestionChallenge;
+import org.keycloak.forms.login.LoginFormsProvider;
 import org.keycloak.models.*;
+import org.keycloak.services.managers.BruteForceProtector;
+import org.keycloak.sessions.AuthenticationSessionModel;
 
-import java.net.URI;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 // 认证器类，通过对Credential操作完成认证过程
 public class SecretQuestionAuthenticator implements Authenticator, CredentialValidator<SecretQuestionCredentialProvider> {
-    private Logger logger = Logger.getLogger(SecretQuestionAuthenticator.class);
+    // 认证器是所有会话共享的单例，只保存无状态或线程安全的字段
+    private static final Logger logger = Logger.getLogger(SecretQuestionAuthenticator.class);
+    // 本次认证选中的问题：authenticate()选定后保存在认证会话中，action()只验证这个凭据，重新显示页面也不会换题
+    public static final String AUTH_NOTE_CREDENTIAL_ID = "secret-question.credential-id";
+    public static final String AUTH_NOTE_QUESTION = "secret-question.question";
+    // 正在注册的设备（领域Id + 用户Id + 设备名称）在集群共享的SingleUseObjectProvider中的标记，事务结束后清除；
+    // 生存时间只是节点在请求中途退出时的兜底
+    private static final String DEVICE_REGISTRATION_PREFIX = "secret-question.device-registration:";
+    private static final long DEVICE_REGISTRATION_LIFESPAN_SECONDS = 30;
+    // 集群范围的错误答案计数，本地累积后按批写入集群
+    private final SecretQuestionFailureTracker failureTracker = SecretQuestionFailureTracker.getInstance();
+    // 审计事件管道，替代逐条同步输出的info日志
+    private final SecretQuestionAuditLog audit = SecretQuestionAuditLog.getInstance();
+    // 最近验证过的设备，由Factory配置容量
+    private final SecretQuestionDeviceCache trustedDevices = SecretQuestionDeviceCache.getInstance();
 
     // 使得认证器可以找到需要使用的Provider
     @Override
@@ -30,91 +53,303 @@ public class SecretQuestionAuthenticator implements Authenticator, CredentialVal
     // 进行认证时的操作，并不负责处理表单，只负责呈现页面或继续流程
     @Override
     public void authenticate(AuthenticationFlowContext authenticationFlowContext) {
-        logger.info("进入认证，呈现页面...");
-//        if (hasCookie(authenticationFlowContext)) {
+        logger.debug("进入认证，呈现页面...");
+        long start = SecretQuestionMetrics.start();
+        if (hasCookie(authenticationFlowContext)) {
             // 将上下文标记为success然后返回
-//            authenticationFlowContext.success();
-//            return;
-//        }
-        // 没回答过，创建一个页面然后作为挑战呈现给用户
-        // 这里的页面是使用已有的模板通过FreeMaker页面构建器构建的，创建后得到JAX-RS Response对象
-        Response challenge = authenticationFlowContext.form().createForm("secret-question.ftl");
+            authenticationFlowContext.success();
+            SecretQuestionMetrics.record(SecretQuestionMetrics.AUTHENTICATE, authenticationFlowContext.getRealm(), SecretQuestionMetrics.SKIPPED, start);
+            return;
+        }
+        // 同一设备最近答对过问题，同样直接通过
+        if (isTrustedDevice(authenticationFlowContext, SecretQuestionSettings.of(authenticationFlowContext))) {
+            authenticationFlowContext.success();
+            audit.emit(SecretQuestionAuditEvent.Type.SUCCESS, authenticationFlowContext, null, null, "trusted_device");
+            SecretQuestionMetrics.record(SecretQuestionMetrics.AUTHENTICATE, authenticationFlowContext.getRealm(), SecretQuestionMetrics.SKIPPED, start);
+            return;
+        }
+        // 没回答过，选定要问的问题并记录在认证会话中，再创建一个页面作为挑战呈现给用户
+        pinQuestion(authenticationFlowContext);
+        // 这里的页面是使用已有的模板通过FreeMaker页面构建器构建的，创建后得到JAX-RS Response对象；JSON挑战模式下直接返回JSON
+        Response challenge = challenge(authenticationFlowContext, null, null);
         // 将此对象传入上下文的challenge()方法，将执行的状态设置为CHALLENGE并将对象发送到浏览器
         authenticationFlowContext.challenge(challenge);
+        audit.emit(SecretQuestionAuditEvent.Type.CHALLENGE_SHOWN, authenticationFlowContext, null, null, null);
+        SecretQuestionMetrics.record(SecretQuestionMetrics.AUTHENTICATE, authenticationFlowContext.getRealm(), SecretQuestionMetrics.CHALLENGE, start);
     }
 
     // 呈现挑战页面、用户输入点击提交后需要做的事情，在这里处理表单数据
     @Override
     public void action(AuthenticationFlowContext authenticationFlowContext) {
-        logger.info("进入action方法，准备验证表单数据...");
+        logger.debug("进入action方法，准备验证表单数据...");
+        long start = SecretQuestionMetrics.start();
+        // 在读取凭据之前先检查整个集群内的错误次数，超过上限或已被领域的暴力破解检测锁定时直接拒绝
+        SecretQuestionSettings settings = SecretQuestionSettings.of(authenticationFlowContext);
+        String credentialId = selectedCredentialId(authenticationFlowContext);
+        RealmModel realm = authenticationFlowContext.getRealm();
+        boolean bruteForce = realm.isBruteForceProtected();
+        int maxFailures = bruteForce ? realm.getFailureFactor() : settings.getAttemptLimitMax();
+        long window = bruteForce && realm.getMaxDeltaTimeSeconds() > 0 ? realm.getMaxDeltaTimeSeconds() * 1000L : settings.getAttemptLimitWindowMillis();
+        // 按 用户 + 客户端IP 计数，另外按用户合计计数，用户合计的上限更高，防止从多个IP分散猜测
+        int maxUserFailures = settings.getAttemptLimitUserMax();
+        KeycloakSession session = authenticationFlowContext.getSession();
+        String userId = authenticationFlowContext.getUser().getId();
+        String attemptKey = SecretQuestionFailureTracker.key(realm.getId(), userId, authenticationFlowContext.getConnection().getRemoteAddr());
+        String userAttemptKey = SecretQuestionFailureTracker.key(realm.getId(), userId);
+        long failures = maxFailures > 0 ? failureTracker.failures(session, attemptKey) : 0;
+        long userFailures = maxUserFailures > 0 ? failureTracker.failures(session, userAttemptKey) : 0;
+        if ((maxFailures > 0 && failures >= maxFailures) || (maxUserFailures > 0 && userFailures >= maxUserFailures)
+                || (bruteForce && isLockedByBruteForce(authenticationFlowContext))) {
+            logger.debug("错误次数过多，暂时锁定");
+            Response challenge = challenge(authenticationFlowContext, "错误次数过多，请稍后再试", "temporarily_locked");
+            authenticationFlowContext.failureChallenge(AuthenticationFlowError.USER_TEMPORARILY_DISABLED, challenge);
+            audit.emit(SecretQuestionAuditEvent.Type.ANSWER_REJECTED, authenticationFlowContext, null, null, "temporarily_locked");
+            SecretQuestionMetrics.record(SecretQuestionMetrics.ACTION, authenticationFlowContext.getRealm(), SecretQuestionMetrics.LOCKOUT, start);
+            return;
+        }
         // 调用自建的验证方法验证上下文中用户提交的答案是否正确
-        boolean validated = validateAnswer(authenticationFlowContext);
+        boolean validated;
+        try {
+            validated = validateAnswer(authenticationFlowContext, credentialId);
+        } catch (SecretQuestionHasher.HashUnavailableException e) {
+            // 哈希线程池过载，答案没有被验证：请用户重试，不计入错误次数，也不记录为答案错误
+            logger.debug("答案验证暂时不可用");
+            Response challenge = challenge(authenticationFlowContext, "服务繁忙，请稍后重试", "temporarily_unavailable");
+            authenticationFlowContext.challenge(challenge);
+            SecretQuestionMetrics.record(SecretQuestionMetrics.ACTION, authenticationFlowContext.getRealm(), SecretQuestionMetrics.UNAVAILABLE, start);
+            return;
+        }
         if(!validated) {
-            logger.info("答案错误");
+            logger.debug("答案错误");
+            failureTracker.recordFailure(session, attemptKey, failures, maxFailures, window);
+            failureTracker.recordFailure(session, userAttemptKey, userFailures, maxUserFailures, window);
             // 答案错误，构建失败页面，加入自定义错误提示，然后呈现Response
-            Response challenge = authenticationFlowContext.form().setError("答案错误").createForm("secret-question.ftl");
+            Response challenge = challenge(authenticationFlowContext, "答案错误", "invalid_answer");
             // failureChallenge()与challenge()作用相同，但会将失败记录到日志
             authenticationFlowContext.failureChallenge(AuthenticationFlowError.INVALID_CREDENTIALS, challenge);
+            audit.emit(SecretQuestionAuditEvent.Type.ANSWER_REJECTED, authenticationFlowContext, credentialId, null, "invalid_answer");
+            SecretQuestionMetrics.record(SecretQuestionMetrics.ACTION, authenticationFlowContext.getRealm(), SecretQuestionMetrics.FAILURE, start);
             return;
         }
-        // 答案正确，记录Cookie然后给上下文标记成功
+        // 答案正确，清除错误计数，记录Cookie然后给上下文标记成功
         // 如果是由DeviceAuth转来，则保存设备信息
-        setCookie(authenticationFlowContext);
+        failureTracker.reset(session, attemptKey, failures);
+        failureTracker.reset(session, userAttemptKey, userFailures);
+        setCookie(authenticationFlowContext, settings);
+        trustDevice(authenticationFlowContext, settings, credentialId);
         if (isRegisterDevice(authenticationFlowContext)) {
-            logger.info("隐私问题认证成功，保存设备信息...");
+            logger.debug("隐私问题认证成功，保存设备信息...");
             String cpuid = authenticationFlowContext.getAuthenticationSession().getClientNote("cpuid");
             String visitorId = authenticationFlowContext.getAuthenticationSession().getClientNote("visitorId");
-            logger.info("cpuid: " + cpuid);
-            logger.info("visitorId: " + visitorId);
-            DeviceAuthCredentialProvider dacp = (DeviceAuthCredentialProvider) authenticationFlowContext.getSession().getProvider(CredentialProvider.class, DeviceAuthConstants.credentialProviderFactoryID);
-            dacp.createCredential(authenticationFlowContext.getRealm(), authenticationFlowContext.getUser(), DeviceAuthCredentialModel.createDeviceAuth("new", cpuid, visitorId));
-            // TODO：确保设备名称不相同，否则会导致系统错误
-            logger.info("成功保存新设备信息");
+            registerDevice(authenticationFlowContext, cpuid, visitorId);
         }
+        authenticationFlowContext.getAuthenticationSession().removeAuthNote(AUTH_NOTE_CREDENTIAL_ID);
+        authenticationFlowContext.getAuthenticationSession().removeAuthNote(AUTH_NOTE_QUESTION);
         authenticationFlowContext.success();
+        audit.emit(SecretQuestionAuditEvent.Type.SUCCESS, authenticationFlowContext, credentialId, null, null);
+        SecretQuestionMetrics.record(SecretQuestionMetrics.ACTION, authenticationFlowContext.getRealm(), SecretQuestionMetrics.SUCCESS, start);
+    }
+
+    // 领域的暴力破解检测已临时或永久锁定该用户；答案错误时Keycloak也会把这次失败计入领域的检测器
+    private boolean isLockedByBruteForce(AuthenticationFlowContext context) {
+        BruteForceProtector protector = context.getSession().getProvider(BruteForceProtector.class);
+        if (protector == null) return false;
+        return protector.isTemporarilyDisabled(context.getSession(), context.getRealm(), context.getUser())
+                || protector.isPermanentlyLockedOut(context.getSession(), context.getRealm(), context.getUser());
+    }
+
+    // 是否为最近答对过问题的设备，设备由DeviceAuth写入的cpuid和visitorId确定
+    protected boolean isTrustedDevice(AuthenticationFlowContext context, SecretQuestionSettings settings) {
+        if (context.getUser() == null || !settings.isDeviceTrustEnabled()) return false;
+        String cpuid = context.getAuthenticationSession().getClientNote("cpuid");
+        String visitorId = context.getAuthenticationSession().getClientNote("visitorId");
+        if (cpuid == null && visitorId == null) return false;
+        boolean trusted = trustedDevices.isTrusted(context.getUser().getId(), cpuid, visitorId, SecretQuestionCredentialSnapshot.of(context.getSession(), context.getUser()));
+        if (trusted) {
+            logger.debug("设备最近已答对问题，跳过认证问题");
+        }
+        return trusted;
+    }
+
+    // 答对问题后记录设备，与答对时使用的凭据绑定
+    protected void trustDevice(AuthenticationFlowContext context, SecretQuestionSettings settings, String credentialId) {
+        if (!settings.isDeviceTrustEnabled()) return;
+        String cpuid = context.getAuthenticationSession().getClientNote("cpuid");
+        String visitorId = context.getAuthenticationSession().getClientNote("visitorId");
+        if (cpuid == null && visitorId == null) return;
+        CredentialModel credential = credentialId == null || credentialId.isEmpty()
+                ? SecretQuestionCredentialSnapshot.of(context.getSession(), context.getUser()).getDefault()
+                : SecretQuestionCredentialSnapshot.find(context.getSession(), context.getUser(), credentialId);
+        trustedDevices.put(context.getUser().getId(), cpuid, visitorId, credential, settings.getDeviceTrustTtlMillis());
+    }
+
+    // 构建挑战：浏览器渲染secret-question.ftl页面，JSON挑战模式下返回问题、凭据Id、提交地址和错误代码，不经过FreeMarker
+    // 问题和凭据Id都取自认证会话中选定的问题，不再读取凭据
+    protected Response challenge(AuthenticationFlowContext context, String message, String errorCode) {
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        if (authSession.getAuthNote(AUTH_NOTE_CREDENTIAL_ID) == null) pinQuestion(context);
+        String question = authSession.getAuthNote(AUTH_NOTE_QUESTION);
+        String credentialId = authSession.getAuthNote(AUTH_NOTE_CREDENTIAL_ID);
+        if (!isJsonChallenge(context)) {
+            LoginFormsProvider form = context.form();
+            if (question != null) form.setAttribute("secretQuestion", question);
+            if (credentialId != null) form.setAttribute("secretQuestionCredentialId", credentialId);
+            if (message != null) form.setError(message);
+            return form.createForm("secret-question.ftl");
+        }
+        SecretQuestionChallenge body = new SecretQuestionChallenge(
+                question,
+                credentialId,
+                context.getActionUrl(context.generateAccessCode()).toString(),
+                errorCode);
+        Response.Status status = errorCode == null ? Response.Status.OK
+                : "temporarily_locked".equals(errorCode) ? Response.Status.TOO_MANY_REQUESTS
+                : "temporarily_unavailable".equals(errorCode) ? Response.Status.SERVICE_UNAVAILABLE : Response.Status.UNAUTHORIZED;
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setNoStore(true);
+        try {
+            return Response.status(status)
+                    .type(MediaType.APPLICATION_JSON_TYPE)
+                    .cacheControl(cacheControl)
+                    .entity(SecretQuestionJson.CHALLENGE_WRITER.writeValueAsString(body))
+                    .build();
+        } catch (IOException e) {
+            throw new IllegalStateException("无法序列化JSON挑战", e);
+        }
+    }
+
+    // 为本次认证选定一个问题，把凭据Id和问题文本记录在认证会话中；已选定且凭据仍然存在时沿用，刷新页面不会换题
+    protected void pinQuestion(AuthenticationFlowContext context) {
+        if (context.getUser() == null) return;
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        SecretQuestionCredentialSnapshot snapshot = SecretQuestionCredentialSnapshot.of(context.getSession(), context.getUser());
+        String pinned = authSession.getAuthNote(AUTH_NOTE_CREDENTIAL_ID);
+        if (pinned != null && snapshot.getById(pinned) != null) return;
+        CredentialModel selected = selectQuestion(snapshot.getCredentials());
+        if (selected == null) return;
+        SecretQuestionCredentialModel credential = getCredentialProvider(context.getSession()).getCredentialFromModel(selected);
+        authSession.setAuthNote(AUTH_NOTE_CREDENTIAL_ID, selected.getId());
+        authSession.setAuthNote(AUTH_NOTE_QUESTION, credential.getSecretQuestionCredentialData().getQuestion());
+    }
+
+    // 加权随机选择问题：存储区按优先级排列凭据，排在第i个（从0开始）的权重为n - i，
+    // 优先级高的问题更常被问到，但每个问题都有机会，不会总是同一个问题
+    protected CredentialModel selectQuestion(List<CredentialModel> credentials) {
+        int n = credentials.size();
+        if (n <= 1) return n == 0 ? null : credentials.get(0);
+        int r = ThreadLocalRandom.current().nextInt(n * (n + 1) / 2);
+        for (int i = 0; i < n; i++) {
+            r -= n - i;
+            if (r < 0) return credentials.get(i);
+        }
+        return credentials.get(n - 1);
+    }
+
+    // 本次认证要验证的凭据Id：authenticate()选定的问题；没有选定时（旧版本创建的认证会话）使用表单中提交的凭据Id
+    protected String selectedCredentialId(AuthenticationFlowContext context) {
+        String pinned = context.getAuthenticationSession().getAuthNote(AUTH_NOTE_CREDENTIAL_ID);
+        return pinned != null ? pinned : context.getHttpRequest().getDecodedFormParameters().getFirst("credentialId");
+    }
+
+    // 认证器配置开启了JSON挑战，或请求的Accept头明确要求application/json（*/*等通配类型不算）
+    protected boolean isJsonChallenge(AuthenticationFlowContext context) {
+        if (SecretQuestionSettings.of(context).isChallengeJson()) {
+            return true;
+        }
+        for (MediaType accepted : context.getHttpRequest().getHttpHeaders().getAcceptableMediaTypes()) {
+            if (!accepted.isWildcardType() && !accepted.isWildcardSubtype() && accepted.isCompatible(MediaType.APPLICATION_JSON_TYPE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 幂等地注册设备：设备名称由cpuid和visitorId确定性生成，已存在同名设备则直接跳过
+    // 凭据表对 用户 + 设备名称 没有唯一约束，新设备在事务提交后才可见，所以创建前先在集群共享缓存中putIfAbsent一个标记，
+    // 任何节点上同一设备的并发注册只有一个能创建；标记在事务提交或回滚后清除，创建失败时立即清除
+    protected void registerDevice(AuthenticationFlowContext context, String cpuid, String visitorId) {
+        long start = SecretQuestionMetrics.start();
+        DeviceAuthCredentialProvider dacp = (DeviceAuthCredentialProvider) context.getSession().getProvider(CredentialProvider.class, DeviceAuthConstants.credentialProviderFactoryID);
+        UserModel user = context.getUser();
+        String label = DeviceFingerprint.label(cpuid, visitorId);
+        if (user.credentialManager().getStoredCredentialByNameAndType(label, dacp.getType()) != null) {
+            logger.debug("设备已注册，跳过保存");
+            SecretQuestionMetrics.record(SecretQuestionMetrics.REGISTER_DEVICE, context.getRealm(), SecretQuestionMetrics.EXISTING, start);
+            return;
+        }
+        SingleUseObjectProvider singleUseObjects = context.getSession().singleUseObjects();
+        String key = DEVICE_REGISTRATION_PREFIX + context.getRealm().getId() + ':' + user.getId() + ':' + label;
+        if (!singleUseObjects.putIfAbsent(key, DEVICE_REGISTRATION_LIFESPAN_SECONDS)) {
+            logger.debug("设备正在由其他请求注册，跳过保存");
+            SecretQuestionMetrics.record(SecretQuestionMetrics.REGISTER_DEVICE, context.getRealm(), SecretQuestionMetrics.EXISTING, start);
+            return;
+        }
+        try {
+            dacp.createCredential(context.getRealm(), user, DeviceAuthCredentialModel.createDeviceAuth(label, cpuid, visitorId));
+        } catch (RuntimeException e) {
+            singleUseObjects.remove(key);
+            throw e;
+        }
+        SecretQuestionTransactions.afterCompletion(context.getSession(), () -> singleUseObjects.remove(key));
+        logger.debug("成功保存新设备信息");
+        audit.emit(SecretQuestionAuditEvent.Type.DEVICE_REGISTERED, context, null, label, null);
+        SecretQuestionMetrics.record(SecretQuestionMetrics.REGISTER_DEVICE, context.getRealm(), SecretQuestionMetrics.SUCCESS, start);
     }
 
     // 设置Cookie内容，用于标记是否已回答过问题
-    protected void setCookie(AuthenticationFlowContext context) {
-        AuthenticatorConfigModel config = context.getAuthenticatorConfig();
-        int maxCookieAge = 60 * 2;
-        if (config != null) {
-            // 如果已有寿命配置，则设置为最大期限，之后需要在AuthenticatorFactory中设置参数，以使得寿命配置可以显示在前端控制台
-            maxCookieAge = Integer.valueOf(config.getConfig().get("cookie.max.age"));
-        }
-        URI uri = context.getUriInfo().getBaseUriBuilder().path("realms").path(context.getRealm().getName()).build();
-        NewCookie newCookie = new NewCookie.Builder("SECRET_QUESTION_ANSWERED").value("true")
-                .path(uri.getRawPath())
+    // 寿命取自配置快照，未配置或配置无效时为默认的2分钟
+    protected void setCookie(AuthenticationFlowContext context, SecretQuestionSettings settings) {
+        long start = SecretQuestionMetrics.start();
+        int maxCookieAge = settings.getCookieMaxAge();
+        // Cookie值经过领域HMAC密钥签名，并绑定领域、用户和过期时间
+        String value = SecretQuestionCookie.issue(context.getSession(), context.getRealm(), context.getUser(), maxCookieAge);
+        if (value == null) {
+            SecretQuestionMetrics.record(SecretQuestionMetrics.SET_COOKIE, context.getRealm(), SecretQuestionMetrics.SKIPPED, start);
+            return;
+        }
+        NewCookie newCookie = new NewCookie.Builder(SecretQuestionCookie.NAME).value(value)
+                .path(SecretQuestionSettings.cookiePath(context))
                 .maxAge(maxCookieAge)
                 .secure(false)
+                .httpOnly(true)
                 .build();
         context.getSession().getContext().getHttpResponse().setCookieIfAbsent(newCookie);
+        SecretQuestionMetrics.record(SecretQuestionMetrics.SET_COOKIE, context.getRealm(), SecretQuestionMetrics.SUCCESS, start);
     }
 
     // 从上下文检查cookie，是否已经回答过问题，这里的SECRET_QUESTION_ANSWERED字段是自定义的，所以也需要手动设置Cookie内容
+    // 只有签名有效、属于当前领域和用户且未过期的Cookie才会被认可
     protected boolean hasCookie(AuthenticationFlowContext context) {
-        Cookie cookie = context.getHttpRequest().getHttpHeaders().getCookies().get("SECRET_QUESTION_ANSWERED");
-        boolean result = cookie != null;
+        if (context.getUser() == null) return false;
+        Cookie cookie = context.getHttpRequest().getHttpHeaders().getCookies().get(SecretQuestionCookie.NAME);
+        boolean result = cookie != null && SecretQuestionCookie.verify(context.getSession(), context.getRealm(), context.getUser(), cookie.getValue());
         if (result) {
-            logger.info("Cookie存在，跳过认证问题");
+            logger.debug("Cookie存在，跳过认证问题");
         }
         return result;
     }
 
     // 从上下文检查提交的答案是否正确，调用Provider的isValid()方法
-    protected boolean validateAnswer(AuthenticationFlowContext context) {
+    // credentialId为选定问题的凭据，Provider按Id直接读取这一个凭据；只有旧版本的认证会话没有选定问题也没有提交Id时才回退到默认凭据
+    protected boolean validateAnswer(AuthenticationFlowContext context, String credentialId) {
+        long start = SecretQuestionMetrics.start();
         MultivaluedMap<String, String> formData = context.getHttpRequest().getDecodedFormParameters();
-        // 得到输入的答案
+        // 得到输入的答案，JSON挑战模式的客户端也可以使用更简短的answer字段
         String secret = formData.getFirst("secret_answer");
-        logger.info("输入的答案：" + secret);
-        // 获取一下Id，考虑到用户可能设置多个Credential，需要确定使用何种答案来验证用户
-        String credentialId = formData.getFirst("credentialId");
+        if (secret == null) secret = formData.getFirst("answer");
         if (credentialId == null || credentialId.isEmpty()) {
-            credentialId = getCredentialProvider(context.getSession()).getDefaultCredential(context.getSession(), context.getRealm(), context.getUser()).getId();
+            SecretQuestionCredentialModel defaultCredential = getCredentialProvider(context.getSession()).getDefaultCredential(context.getSession(), context.getRealm(), context.getUser());
+            if (defaultCredential == null) {
+                SecretQuestionMetrics.record(SecretQuestionMetrics.VALIDATE_ANSWER, context.getRealm(), SecretQuestionMetrics.FAILURE, start);
+                return false;
+            }
+            credentialId = defaultCredential.getId();
         }
         // 构造能够使Provider.isValid()进行判断的UserCredentialModel实例
         UserCredentialModel input = new UserCredentialModel(credentialId, getType(context.getSession()), secret);
-        return getCredentialProvider(context.getSession()).isValid(context.getRealm(), context.getUser(), input);
+        boolean valid = getCredentialProvider(context.getSession()).isValid(context.getRealm(), context.getUser(), input);
+        SecretQuestionMetrics.record(SecretQuestionMetrics.VALIDATE_ANSWER, context.getRealm(), valid ? SecretQuestionMetrics.SUCCESS : SecretQuestionMetrics.FAILURE, start);
+        return valid;
     }
 
     protected boolean isRegisterDevice(AuthenticationFlowContext context) {
@@ -131,16 +366,16 @@ public class SecretQuestionAuthenticator implements Authenticator, CredentialVal
     // 查看是否已经配置此认证器，因为下层的Provider已经写好判断逻辑所以直接调用即可
     @Override
     public boolean configuredFor(KeycloakSession keycloakSession, RealmModel realmModel, UserModel userModel) {
-        logger.info("查看是否配置认证器...");
+        logger.debug("查看是否配置认证器...");
         boolean flag = getCredentialProvider(keycloakSession).isConfiguredFor(realmModel, userModel, getType(keycloakSession));
-        logger.info("配置认证器结果：" + flag);
-        return getCredentialProvider(keycloakSession).isConfiguredFor(realmModel, userModel, getType(keycloakSession));
+        logger.debugf("配置认证器结果：%s", flag);
+        return flag;
     }
 
     // 若未配置认证器但设置为必需，则会调用此方法，这里即为要求用户设置问题和答案。只需要【注册】操作即可（即指向一个RequiredAction实例），操作的实现逻辑在其他地方编写
     @Override
     public void setRequiredActions(KeycloakSession keycloakSession, RealmModel realmModel, UserModel userModel) {
-        logger.info("未配置，但必须，所以设置注册RequiredAction");
+        logger.debug("未配置，但必须，所以设置注册RequiredAction");
         userModel.addRequiredAction(SecretQuestionRequiredAction.PROVIDER_ID);
     }
 
@@ -7,13 +7,22 @@ import org.keycloak.authentication.ConfigurableAuthenticatorFactory;
 import org.keycloak.models.AuthenticationExecutionModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.cache.CachedRealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ServerInfoAwareProviderFactory;
+import org.keycloak.services.scheduled.ClusterAwareScheduledTaskRunner;
+import org.keycloak.timer.TimerProvider;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 // 工厂类，负责实例化Authenticator并设置此认证器部署的相关信息
-public class SecretQuestionAuthenticatorFactory implements AuthenticatorFactory, ConfigurableAuthenticatorFactory {
+public class SecretQuestionAuthenticatorFactory implements AuthenticatorFactory, ConfigurableAuthenticatorFactory, ServerInfoAwareProviderFactory {
     public static final String PROVIDER_ID = "secret-question-authenticator";
     private static final SecretQuestionAuthenticator SINGLETON = new SecretQuestionAuthenticator();
     private static AuthenticationExecutionModel.Requirement[] REQUIREMENT_CHOICES = {
@@ -22,14 +31,85 @@ public class SecretQuestionAuthenticatorFactory implements AuthenticatorFactory,
             AuthenticationExecutionModel.Requirement.DISABLED
     };
     private static final List<ProviderConfigProperty> configProperties = new ArrayList<ProviderConfigProperty>();
+    private boolean metricsEnabled = true;
+    private boolean metricsPercentileHistogram = false;
+    // 设备凭据清理任务的配置，init()中读取，postInit()中注册
+    private boolean devicePruneEnabled = false;
+    private long devicePruneInterval;
+    private long devicePruneMaxAge;
+    private int devicePruneMaxPerUser;
+    private int devicePruneBatchSize;
+    private int devicePruneMaxDeletes;
+    private int devicePruneOpsPerSecond;
+    private DeviceCredentialPruneTask devicePruneTask;
+    // 启动预热的合成登录次数，0表示不预热
+    private int warmupIterations;
+    private SecretQuestionWarmup warmup;
+
+    public static final String COOKIE_MAX_AGE = "cookie.max.age";
+    public static final int DEFAULT_COOKIE_MAX_AGE = 60 * 2;
+    public static final String ATTEMPT_LIMIT_MAX = "attempt.limit.max";
+    public static final String ATTEMPT_LIMIT_WINDOW = "attempt.limit.window";
+    public static final String ATTEMPT_LIMIT_USER_MAX = "attempt.limit.user.max";
+    public static final int DEFAULT_ATTEMPT_LIMIT_MAX = 5;
+    public static final int DEFAULT_ATTEMPT_LIMIT_WINDOW = 300;
+    public static final int DEFAULT_ATTEMPT_LIMIT_USER_MAX = 20;
+    public static final String CHALLENGE_JSON = "challenge.json";
+    public static final String DEVICE_TRUST_TTL = "device.trust.ttl";
 
     // 在初始化时加入一个显示在UI配置界面的配置选项：cookie时长
     static {
         ProviderConfigProperty pcp = new ProviderConfigProperty();
-        pcp.setName("cookie.max.age");
+        pcp.setName(COOKIE_MAX_AGE);
         pcp.setLabel("Cookie最大生存时间");
         pcp.setType(ProviderConfigProperty.STRING_TYPE);
         pcp.setHelpText("Cookie有效期延续时间/秒");
+        pcp.setDefaultValue(String.valueOf(DEFAULT_COOKIE_MAX_AGE));
+        configProperties.add(pcp);
+
+        // 错误答案次数限制：统计窗口内该用户在同一IP上的错误次数（整个集群合计）达到上限后，暂时拒绝该用户在这个IP上的回答；
+        // 领域开启暴力破解检测时改用领域的设置
+        pcp = new ProviderConfigProperty();
+        pcp.setName(ATTEMPT_LIMIT_MAX);
+        pcp.setLabel("错误答案次数上限");
+        pcp.setType(ProviderConfigProperty.STRING_TYPE);
+        pcp.setHelpText("统计窗口内同一用户在同一IP上允许的错误答案次数，达到后暂时锁定，0表示不限制；领域开启暴力破解检测时使用其最大登录失败次数");
+        pcp.setDefaultValue(String.valueOf(DEFAULT_ATTEMPT_LIMIT_MAX));
+        configProperties.add(pcp);
+
+        pcp = new ProviderConfigProperty();
+        pcp.setName(ATTEMPT_LIMIT_WINDOW);
+        pcp.setLabel("错误答案统计窗口");
+        pcp.setType(ProviderConfigProperty.STRING_TYPE);
+        pcp.setHelpText("从第一次错误答案开始统计的窗口长度/秒，也是锁定的最长时长；领域开启暴力破解检测时使用其失败重置时间");
+        pcp.setDefaultValue(String.valueOf(DEFAULT_ATTEMPT_LIMIT_WINDOW));
+        configProperties.add(pcp);
+
+        // 按用户合计的错误答案次数上限：防止从多个IP分散猜测，阈值应明显高于单个IP的上限，使单个IP无法锁定他人的账号
+        pcp = new ProviderConfigProperty();
+        pcp.setName(ATTEMPT_LIMIT_USER_MAX);
+        pcp.setLabel("用户错误答案次数上限");
+        pcp.setType(ProviderConfigProperty.STRING_TYPE);
+        pcp.setHelpText("统计窗口内同一用户在所有IP上合计允许的错误答案次数，达到后暂时锁定该用户，0表示不限制");
+        pcp.setDefaultValue(String.valueOf(DEFAULT_ATTEMPT_LIMIT_USER_MAX));
+        configProperties.add(pcp);
+
+        // JSON挑战模式：面向API和原生客户端，挑战以JSON返回而不渲染页面；未开启时也可以由请求头Accept: application/json触发
+        pcp = new ProviderConfigProperty();
+        pcp.setName(CHALLENGE_JSON);
+        pcp.setLabel("JSON挑战模式");
+        pcp.setType(ProviderConfigProperty.BOOLEAN_TYPE);
+        pcp.setHelpText("总是以JSON返回问题、凭据Id和错误代码，不渲染登录页面");
+        pcp.setDefaultValue("false");
+        configProperties.add(pcp);
+
+        // 最近验证过的设备：同一设备答对问题后的一段时间内再次登录不再出题
+        pcp = new ProviderConfigProperty();
+        pcp.setName(DEVICE_TRUST_TTL);
+        pcp.setLabel("设备信任时长");
+        pcp.setType(ProviderConfigProperty.STRING_TYPE);
+        pcp.setHelpText("同一设备（cpuid + visitorId）答对问题后免答的时长/秒，0表示不启用");
+        pcp.setDefaultValue("0");
         configProperties.add(pcp);
     }
 
@@ -39,19 +119,77 @@ public class SecretQuestionAuthenticatorFactory implements AuthenticatorFactory,
         return SINGLETON;
     }
 
+    // 启动时创建答案验证线程池，并根据每次验证的耗时预算校准哈希迭代次数
+    // 可通过SPI配置hashLatencyBudget（毫秒）、hashThreads、hashQueueSize、hashTimeout（毫秒）覆盖默认值，deviceCacheMaxSize为信任设备记录的容量，warmupIterations为启动预热的合成登录次数，
+    // failureFlushInterval（毫秒）为错误答案计数批量写入集群的间隔
     @Override
     public void init(Config.Scope scope) {
-
+        SecretQuestionHasher hasher = SecretQuestionHasher.getInstance();
+        hasher.configure(
+                scope.getInt("hashThreads", Runtime.getRuntime().availableProcessors()),
+                scope.getInt("hashQueueSize", 64),
+                scope.getLong("hashTimeout", 1000L));
+        hasher.calibrate(scope.getLong("hashLatencyBudget", 20L));
+        metricsEnabled = scope.getBoolean("metricsEnabled", true);
+        metricsPercentileHistogram = scope.getBoolean("metricsPercentileHistogram", false);
+        SecretQuestionDeviceCache.getInstance().configure(scope.getInt("deviceCacheMaxSize", SecretQuestionDeviceCache.DEFAULT_MAX_SIZE));
+        // 审计管道：缓冲区大小、每批写入数量、挑战/成功事件的采样率、是否转发给领域的事件监听器
+        SecretQuestionAuditLog.getInstance().configure(
+                scope.getInt("auditBufferSize", 8192),
+                scope.getInt("auditBatchSize", 256),
+                SecretQuestionAuditLog.parseSampleRate(scope.get("auditSampleRate"), 1.0),
+                scope.getBoolean("auditForwardToListeners", true));
+        // 设备凭据清理：会删除用户的DeviceAuth凭据，被删除的设备需要重新回答问题，所以默认关闭，需要设置devicePruneEnabled=true开启
+        // 执行间隔/秒、设备最长保留天数（按注册时间而不是最后使用时间，默认0即不按时间清理）、每个用户最多保留的设备数（0不限制）、
+        // 每个事务处理的用户数、每次执行最多删除的数量、每秒最多的存储区操作数
+        devicePruneEnabled = scope.getBoolean("devicePruneEnabled", false);
+        devicePruneInterval = Math.max(60, scope.getLong("devicePruneInterval", TimeUnit.DAYS.toSeconds(1)));
+        devicePruneMaxAge = scope.getLong("devicePruneMaxAge", 0L);
+        devicePruneMaxPerUser = scope.getInt("devicePruneMaxPerUser", 10);
+        devicePruneBatchSize = Math.max(1, scope.getInt("devicePruneBatchSize", 100));
+        devicePruneMaxDeletes = Math.max(1, scope.getInt("devicePruneMaxDeletes", 10000));
+        devicePruneOpsPerSecond = scope.getInt("devicePruneOpsPerSecond", 100);
+        warmupIterations = Math.max(0, scope.getInt("warmupIterations", 50));
+        SecretQuestionFailureTracker.getInstance().configure(scope.getLong("failureFlushInterval", 1000L));
     }
 
+    // Keycloak的Micrometer注册表在此时已经就绪，据此决定是否启用热路径指标；同时注册设备凭据清理任务
+    // 领域被删除或重新载入缓存（修改认证器配置会使领域缓存失效）时清除该领域的配置快照，领域被删除时还注销该领域的指标
+    // 最后执行启动预热，预热完成前Keycloak不会就绪
     @Override
     public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
-
+        SecretQuestionMetrics.setEnabled(metricsEnabled, metricsPercentileHistogram);
+        SecretQuestionAuditLog.getInstance().start(keycloakSessionFactory);
+        SecretQuestionFailureTracker.getInstance().start(keycloakSessionFactory);
+        keycloakSessionFactory.register(event -> {
+            if (event instanceof RealmModel.RealmRemovedEvent removed) {
+                SecretQuestionSettings.invalidateRealm(removed.getRealm().getId());
+                SecretQuestionMetrics.removeRealm(removed.getRealm().getId());
+            } else if (event instanceof CachedRealmModel.RealmCachedEvent cached) {
+                SecretQuestionSettings.invalidateRealm(cached.getRealm().getId());
+            }
+        });
+        if (devicePruneEnabled) {
+            long intervalMillis = TimeUnit.SECONDS.toMillis(devicePruneInterval);
+            devicePruneTask = new DeviceCredentialPruneTask(keycloakSessionFactory, intervalMillis, TimeUnit.DAYS.toMillis(devicePruneMaxAge),
+                    devicePruneMaxPerUser, devicePruneBatchSize, devicePruneMaxDeletes, devicePruneOpsPerSecond);
+            KeycloakModelUtils.runJobInTransaction(keycloakSessionFactory, session -> {
+                TimerProvider timer = session.getProvider(TimerProvider.class);
+                timer.schedule(new ClusterAwareScheduledTaskRunner(keycloakSessionFactory, devicePruneTask, intervalMillis), intervalMillis, DeviceCredentialPruneTask.TASK_NAME);
+            });
+        }
+        if (warmupIterations > 0) {
+            warmup = new SecretQuestionWarmup(warmupIterations);
+            warmup.run(keycloakSessionFactory);
+        }
     }
 
     @Override
     public void close() {
-
+        SecretQuestionHasher.getInstance().shutdown();
+        SecretQuestionAuditLog.getInstance().stop();
+        SecretQuestionFailureTracker.getInstance().stop();
+        SecretQuestionSettings.invalidateAll();
     }
 
     // 向系统提供该组件的名称
@@ -95,6 +233,30 @@ public class SecretQuestionAuthenticatorFactory implements AuthenticatorFactory,
         return "密保问题验证器";
     }
 
+    // 在管理控制台的服务器信息页展示设备凭据清理、启动预热和错误答案计数写入的情况
+    @Override
+    public Map<String, String> getOperationalInfo() {
+        Map<String, String> info = new LinkedHashMap<>();
+        info.put("devicePruneEnabled", String.valueOf(devicePruneEnabled));
+        if (devicePruneTask != null) {
+            info.put("devicePruneLastRunDeleted", String.valueOf(devicePruneTask.getLastRunDeleted()));
+            info.put("devicePruneTotalDeleted", String.valueOf(devicePruneTask.getTotalDeleted()));
+        }
+        SecretQuestionFailureTracker failureTracker = SecretQuestionFailureTracker.getInstance();
+        info.put("failurePendingUsers", String.valueOf(failureTracker.pendingSize()));
+        info.put("failureFlushedKeys", String.valueOf(failureTracker.getFlushedKeys()));
+        info.put("failureImmediateFlushes", String.valueOf(failureTracker.getImmediateFlushes()));
+        if (warmup != null) {
+            info.put("warmupIterations", String.valueOf(warmup.getIterations()));
+            info.put("warmupTotalMs", String.valueOf(warmup.getTotalMillis()));
+            info.put("warmupFirstLoginUs", String.valueOf(warmup.getFirstLoginMicros()));
+            info.put("warmupSteadyLoginUs", String.valueOf(warmup.getSteadyLoginMicros()));
+            info.put("warmupFastAfterMs", String.valueOf(warmup.getFastAfterMillis()));
+            info.put("warmupReadyAtUptimeMs", String.valueOf(warmup.getReadyAtUptimeMillis()));
+        }
+        return info;
+    }
+
     // 在UI界面点击配置小齿轮后将显示哪些配置信息
     @Override
     public List<ProviderConfigProperty> getConfigProperties() {
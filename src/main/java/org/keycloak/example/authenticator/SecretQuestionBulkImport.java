@@ -0,0 +1,194 @@
+package org.keycloak.example.authenticator;
+
+import org.jboss.logging.Logger;
+import org.keycloak.credential.CredentialProvider;
+import org.keycloak.example.authenticator.dto.SecretQuestionImportRecord;
+import org.keycloak.example.authenticator.dto.SecretQuestionSecretData;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// 批量导入密保问题凭据：逐行读取NDJSON请求体，不把整个请求体读入内存
+// 每批记录先在哈希线程池中并行计算答案哈希（不占用数据库事务，也不逐条阻塞在请求线程上），再在一个独立事务中创建，事务提交后输出一行进度，其中的line即可作为断点
+// 中断后用resumeFrom=<line>重新提交同一个文件即可继续；已有密保问题的用户会被跳过，所以断点落后几条也不会重复创建
+public class SecretQuestionBulkImport {
+    private static final Logger logger = Logger.getLogger(SecretQuestionBulkImport.class);
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final String realmId;
+    private final int batchSize;
+    private final long resumeFrom;
+
+    private long line;
+    private long created;
+    private long skipped;
+    private long failed;
+    private long startedAt;
+
+    public SecretQuestionBulkImport(KeycloakSessionFactory sessionFactory, String realmId, int batchSize, long resumeFrom) {
+        this.sessionFactory = sessionFactory;
+        this.realmId = realmId;
+        this.batchSize = batchSize;
+        this.resumeFrom = resumeFrom;
+    }
+
+    // 读取全部记录，进度、单条错误和最终汇总都以NDJSON逐行写入out
+    public void run(BufferedReader in, Writer out) throws IOException {
+        startedAt = System.nanoTime();
+        List<Item> batch = new ArrayList<>(batchSize);
+        String text;
+        while ((text = in.readLine()) != null) {
+            line++;
+            // 断点之前的行只计数，不解析
+            if (line <= resumeFrom || text.isBlank()) continue;
+            batch.add(parse(line, text));
+            if (batch.size() >= batchSize) {
+                hash(batch);
+                flush(batch, out);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            hash(batch);
+            flush(batch, out);
+        }
+        write(out, report("summary"));
+        out.flush();
+        logger.infof("领域%s批量导入密保问题完成：共%d行，创建%d，跳过%d，失败%d", realmId, line, created, skipped, failed);
+    }
+
+    // 解析一行，答案哈希留到整批读完后在线程池中进行
+    private Item parse(long lineNumber, String text) {
+        Item item = new Item(lineNumber);
+        try {
+            SecretQuestionImportRecord record = SecretQuestionJson.IMPORT_RECORD_READER.readValue(text);
+            item.username = record.getUsername();
+            if (isEmpty(record.getUsername()) || isEmpty(record.getQuestion()) || isEmpty(record.getAnswer())) {
+                item.error = "missing_field";
+            } else {
+                item.question = record.getQuestion();
+                item.answer = record.getAnswer();
+            }
+        } catch (IOException e) {
+            item.error = "invalid_json";
+        }
+        return item;
+    }
+
+    // 在事务之外批量哈希本批次的答案，使数据库事务尽量短；哈希完成前不再读取下一批，导入速度受线程池限制
+    private void hash(List<Item> batch) {
+        List<Item> pending = new ArrayList<>(batch.size());
+        List<String> answers = new ArrayList<>(batch.size());
+        for (Item item : batch) {
+            if (item.error != null) continue;
+            pending.add(item);
+            answers.add(item.answer);
+        }
+        if (pending.isEmpty()) return;
+        try {
+            List<SecretQuestionSecretData> secretData = SecretQuestionHasher.getInstance().createSecretData(answers);
+            for (int i = 0; i < pending.size(); i++) {
+                Item item = pending.get(i);
+                item.model = SecretQuestionCredentialModel.createSecretQuestion(item.question, secretData.get(i));
+            }
+        } catch (RuntimeException e) {
+            logger.warnf(e, "领域%s批量导入第%d至%d行的答案哈希失败", realmId, batch.get(0).line, batch.get(batch.size() - 1).line);
+            for (Item item : pending) item.error = "hash_failed";
+        } finally {
+            for (Item item : pending) item.answer = null;
+        }
+    }
+
+    // 一个批次对应一个事务，整个事务失败时本批次中尚未出错的记录全部记为失败
+    private void flush(List<Item> batch, Writer out) throws IOException {
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                session.getContext().setRealm(realm);
+                SecretQuestionCredentialProvider provider = (SecretQuestionCredentialProvider) session.getProvider(CredentialProvider.class, SecretQuestionCredentialProviderFactory.PROVIDER_ID);
+                for (Item item : batch) {
+                    if (item.error != null) continue;
+                    UserModel user = session.users().getUserByUsername(realm, item.username);
+                    if (user == null) {
+                        item.error = "user_not_found";
+                    } else if (provider.isConfiguredFor(realm, user, SecretQuestionCredentialModel.TYPE)) {
+                        item.skipped = true;
+                    } else {
+                        provider.createCredential(realm, user, item.model);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            logger.warnf(e, "领域%s批量导入第%d至%d行的事务失败", realmId, batch.get(0).line, batch.get(batch.size() - 1).line);
+            for (Item item : batch) {
+                if (item.error == null) item.error = "transaction_failed";
+            }
+        }
+        for (Item item : batch) {
+            if (item.error != null) {
+                failed++;
+                Map<String, Object> error = new LinkedHashMap<>();
+                error.put("type", "error");
+                error.put("line", item.line);
+                error.put("username", item.username);
+                error.put("error", item.error);
+                write(out, error);
+            } else if (item.skipped) {
+                skipped++;
+            } else {
+                created++;
+            }
+        }
+        write(out, report("progress"));
+        // 每个批次提交后立即发给客户端，客户端据此记录断点
+        out.flush();
+    }
+
+    private Map<String, Object> report(String type) {
+        long elapsedMillis = Math.max(1, (System.nanoTime() - startedAt) / 1_000_000);
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("type", type);
+        report.put("line", line);
+        report.put("created", created);
+        report.put("skipped", skipped);
+        report.put("failed", failed);
+        report.put("elapsedMs", elapsedMillis);
+        report.put("recordsPerSecond", (created + skipped + failed) * 1000 / elapsedMillis);
+        return report;
+    }
+
+    private static void write(Writer out, Map<String, Object> value) throws IOException {
+        out.write(JsonSerialization.writeValueAsString(value));
+        out.write('\n');
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.isEmpty();
+    }
+
+    // 一行记录的处理状态
+    private static final class Item {
+        private final long line;
+        private String username;
+        private String question;
+        // 哈希完成后即清除
+        private String answer;
+        private SecretQuestionCredentialModel model;
+        private String error;
+        private boolean skipped;
+
+        private Item(long line) {
+            this.line = line;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.keycloak.example.authenticator;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import javax.crypto.Mac;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+// "已回答过问题"Cookie的签发与校验，Cookie内容为 <kid>.<realmId>.<userId>.<过期时间>.<签名>
+// 签名使用领域的HMAC密钥（HS512），按kid查找密钥，所以密钥轮换后旧的被动密钥签出的Cookie仍可校验，直到密钥被禁用
+// 校验只需要计算一次HMAC，不访问数据库
+public class SecretQuestionCookie {
+    private static final Logger logger = Logger.getLogger(SecretQuestionCookie.class);
+    public static final String NAME = "SECRET_QUESTION_ANSWERED";
+    private static final String ALGORITHM = Algorithm.HS512;
+    private static final String MAC_ALGORITHM = "HmacSHA512";
+
+    private SecretQuestionCookie() {
+    }
+
+    // 使用领域当前的活动密钥签发Cookie值，没有可用的HMAC密钥时返回null
+    public static String issue(KeycloakSession session, RealmModel realm, UserModel user, int maxAgeSeconds) {
+        KeyWrapper key;
+        try {
+            key = session.keys().getActiveKey(realm, KeyUse.SIG, ALGORITHM);
+        } catch (RuntimeException e) {
+            logger.warnf("领域%s没有可用的%s密钥，不签发Cookie", realm.getName(), ALGORITHM);
+            return null;
+        }
+        if (key == null || key.getSecretKey() == null) return null;
+        long expiresAt = Time.currentTime() + (long) maxAgeSeconds;
+        String payload = key.getKid() + "." + realm.getId() + "." + user.getId() + "." + expiresAt;
+        return payload + "." + sign(key, payload);
+    }
+
+    // 校验Cookie是否由本领域签发、属于当前用户且未过期
+    public static boolean verify(KeycloakSession session, RealmModel realm, UserModel user, String value) {
+        if (value == null) return false;
+        int signatureStart = value.lastIndexOf('.');
+        if (signatureStart < 0) return false;
+        String payload = value.substring(0, signatureStart);
+        String[] parts = payload.split("\\.", -1);
+        if (parts.length != 4) return false;
+        if (!realm.getId().equals(parts[1]) || !user.getId().equals(parts[2])) return false;
+        long expiresAt;
+        try {
+            expiresAt = Long.parseLong(parts[3]);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (expiresAt <= Time.currentTime()) return false;
+        KeyWrapper key = session.keys().getKey(realm, parts[0], KeyUse.SIG, ALGORITHM);
+        if (key == null || key.getSecretKey() == null) return false;
+        byte[] expected = sign(key, payload).getBytes(StandardCharsets.US_ASCII);
+        byte[] actual = value.substring(signatureStart + 1).getBytes(StandardCharsets.US_ASCII);
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    private static String sign(KeyWrapper key, String payload) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key.getSecretKey());
+            byte[] signature = mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(signature);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.keycloak.example.authenticator;
+
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.common.util.Time;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+// 节点本地缓存，保存问题和答案的解码结果，避免每次登录都重新解码
+// 以凭据Id为键，命中时还要比对存储区中的原始内容（内容指纹），内容变了就当作未命中重新解码
+public class SecretQuestionCredentialCache {
+    private final int maxSize;
+    private final long ttlMillis;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // 按访问顺序排列的LinkedHashMap，超过容量时淘汰最久未使用的条目
+    private final LinkedHashMap<String, Entry> entries;
+
+    public SecretQuestionCredentialCache(int maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                boolean evict = size() > SecretQuestionCredentialCache.this.maxSize;
+                if (evict) evictions.increment();
+                return evict;
+            }
+        };
+    }
+
+    // 从缓存得到自定义Model，未命中时放入缓存；每次都返回新的Model对象，缓存中只共享按需解码、解码后不可变的结果
+    public SecretQuestionCredentialModel get(CredentialModel credentialModel) {
+        String id = credentialModel.getId();
+        if (id == null || maxSize <= 0) {
+            return SecretQuestionCredentialModel.createFromCredentialModel(credentialModel);
+        }
+        long now = Time.currentTimeMillis();
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(id);
+            if (entry != null && entry.expiresAt <= now) {
+                entries.remove(id);
+                evictions.increment();
+                entry = null;
+            }
+        }
+        if (entry != null && entry.matches(credentialModel)) {
+            hits.increment();
+            return SecretQuestionCredentialModel.createFromCredentialModel(credentialModel, entry.decoded);
+        }
+        misses.increment();
+        // 解码在锁外、第一次读取字段时进行，避免高并发登录时互相等待
+        SecretQuestionCredentialModel sqcm = SecretQuestionCredentialModel.createFromCredentialModel(credentialModel);
+        Entry fresh = new Entry(sqcm.getDecoded(), now + ttlMillis);
+        synchronized (entries) {
+            entries.put(id, fresh);
+        }
+        return sqcm;
+    }
+
+    // 凭据被创建、修改或删除时调用，移除对应的缓存条目
+    public void invalidate(String credentialId) {
+        if (credentialId == null) return;
+        synchronized (entries) {
+            entries.remove(credentialId);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    // 缓存条目，原始存储内容作为内容指纹，先比较hash再逐字比较，避免hash碰撞读到旧答案
+    private static final class Entry {
+        private final SecretQuestionCredentialModel.Decoded decoded;
+        private final int fingerprint;
+        private final long expiresAt;
+
+        private Entry(SecretQuestionCredentialModel.Decoded decoded, long expiresAt) {
+            this.decoded = decoded;
+            this.fingerprint = Objects.hash(decoded.rawCredentialData, decoded.rawSecretData);
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean matches(CredentialModel credentialModel) {
+            return fingerprint == Objects.hash(credentialModel.getCredentialData(), credentialModel.getSecretData())
+                    && Objects.equals(decoded.rawCredentialData, credentialModel.getCredentialData())
+                    && Objects.equals(decoded.rawSecretData, credentialModel.getSecretData());
+        }
+    }
+}
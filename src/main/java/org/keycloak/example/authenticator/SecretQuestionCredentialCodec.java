@@ -0,0 +1,52 @@
+package org.keycloak.example.authenticator;
+
+import org.keycloak.example.authenticator.dto.SecretQuestionCredentialData;
+import org.keycloak.example.authenticator.dto.SecretQuestionSecretData;
+
+// 凭据存储格式的编码与解码
+// 答案（secretData）使用带版本标记的紧凑格式：v2$<迭代次数>$<Base64盐值>$<Base64哈希>，解析只需要几次indexOf，不经过Jackson
+// 旧版本的JSON格式（以'{'开头）仍可读取，下次写入时升级为紧凑格式
+// 问题（credentialData）仍使用JSON，管理控制台会把它当作JSON展示；JSON的读写使用SecretQuestionJson中预先构建的实例
+public final class SecretQuestionCredentialCodec {
+    public static final String SECRET_FORMAT_V2 = "v2$";
+    private static final char SEPARATOR = '$';
+
+    private SecretQuestionCredentialCodec() {
+    }
+
+    // 是否已经是当前的存储格式
+    public static boolean isCurrentSecretFormat(String secretData) {
+        return secretData != null && secretData.startsWith(SECRET_FORMAT_V2);
+    }
+
+    // 哈希后的答案写成紧凑格式；明文答案只在读取旧数据时出现，不会再以紧凑格式写入
+    public static String encodeSecret(SecretQuestionSecretData secretData) {
+        if (!secretData.isHashed()) {
+            return SecretQuestionJson.write(SecretQuestionJson.SECRET_DATA_WRITER, secretData);
+        }
+        return SECRET_FORMAT_V2 + secretData.getIterations() + SEPARATOR + secretData.getSalt() + SEPARATOR + secretData.getAnswer();
+    }
+
+    public static SecretQuestionSecretData decodeSecret(String secretData) {
+        if (isCurrentSecretFormat(secretData)) {
+            int iterationsEnd = secretData.indexOf(SEPARATOR, SECRET_FORMAT_V2.length());
+            int saltEnd = iterationsEnd < 0 ? -1 : secretData.indexOf(SEPARATOR, iterationsEnd + 1);
+            if (saltEnd < 0) {
+                throw new IllegalArgumentException("无法解析的答案数据格式");
+            }
+            int iterations = Integer.parseInt(secretData.substring(SECRET_FORMAT_V2.length(), iterationsEnd));
+            String salt = secretData.substring(iterationsEnd + 1, saltEnd);
+            String hash = secretData.substring(saltEnd + 1);
+            return new SecretQuestionSecretData(hash, salt, iterations);
+        }
+        return SecretQuestionJson.read(SecretQuestionJson.SECRET_DATA_READER, secretData);
+    }
+
+    public static String encodeCredential(SecretQuestionCredentialData credentialData) {
+        return SecretQuestionJson.write(SecretQuestionJson.CREDENTIAL_DATA_WRITER, credentialData);
+    }
+
+    public static SecretQuestionCredentialData decodeCredential(String credentialData) {
+        return SecretQuestionJson.read(SecretQuestionJson.CREDENTIAL_DATA_READER, credentialData);
+    }
+}
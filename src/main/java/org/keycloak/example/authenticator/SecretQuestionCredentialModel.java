@@ -4,56 +4,58 @@ import org.keycloak.example.authenticator.dto.SecretQuestionCredentialData;
 import org.keycloak.example.authenticator.dto.SecretQuestionSecretData;
 import org.keycloak.common.util.Time;
 import org.keycloak.credential.CredentialModel;
-import org.keycloak.util.JsonSerialization;
-
-import java.io.IOException;
 
 public class SecretQuestionCredentialModel extends CredentialModel {
     public static final String TYPE = "SECRET_QUESTION";
 
-    private final SecretQuestionCredentialData credentialData;  // 问题POJO
-    private final SecretQuestionSecretData secretData;  // 答案POJO
+    // 问题和答案的POJO，按需解码：isValid()只需要答案，管理控制台只需要问题
+    private final Decoded decoded;
 
     public SecretQuestionCredentialData getSecretQuestionCredentialData() {
-        return credentialData;
+        return decoded.credentialData();
     }
 
     public SecretQuestionSecretData getSecretQuestionSecretData() {
-        return secretData;
+        return decoded.secretData();
+    }
+
+    Decoded getDecoded() {
+        return decoded;
     }
 
-    // 构造方法1，从问题和答案的POJO构造自定义Model，保存这两个POJO到Model对象中
-    private SecretQuestionCredentialModel(SecretQuestionCredentialData credentialData, SecretQuestionSecretData secretData) {
-        this.credentialData = credentialData;
-        this.secretData = secretData;
+    // 构造方法1，从（可能尚未解码的）两个POJO构造自定义Model
+    private SecretQuestionCredentialModel(Decoded decoded) {
+        this.decoded = decoded;
     }
 
-    // 构造方法2，当场创建POJO并保存到Model对象
+    // 构造方法2，当场创建POJO并保存到Model对象，答案会先加盐哈希再保存
     private SecretQuestionCredentialModel(String question, String answer) {
-        this.credentialData = new SecretQuestionCredentialData(question);
-        this.secretData = new SecretQuestionSecretData(answer);
+        this(question, SecretQuestionHasher.getInstance().createSecretData(answer));
+    }
+
+    // 构造方法3，答案已经在别处哈希好（如批量导入在线程池中批量哈希）
+    private SecretQuestionCredentialModel(String question, SecretQuestionSecretData secretData) {
+        this.decoded = new Decoded(new SecretQuestionCredentialData(question), secretData);
     }
 
     // 根据已有的CredentialModel基类获取【保存了两个POJO以及原基类所有凭证属性】的自定义Model对象
     // 写这个静态类是因为之后的Provider中需要重写相应方法，而那个方法就需要根据传入的CredentialModel得到具体自定义Model
+    // 问题和答案此时并不解析，第一次读取对应字段时才解码
     public static SecretQuestionCredentialModel createFromCredentialModel(CredentialModel credentialModel) {
-        try {
-            // 分别将从credentialModel读取到的、JSON形式的问题和答案转化为自定义出的两种POJO对象
-            SecretQuestionCredentialData credentialData = JsonSerialization.readValue(credentialModel.getCredentialData(), SecretQuestionCredentialData.class);
-            SecretQuestionSecretData secretData = JsonSerialization.readValue(credentialModel.getSecretData(), SecretQuestionSecretData.class);
-            // 使用两种POJO构造自定义Model，并填充各信息（这次以JSON序列化的形式将问题和答案再次保存）
-            SecretQuestionCredentialModel secretQuestionCredentialModel = new SecretQuestionCredentialModel(credentialData, secretData);
-            secretQuestionCredentialModel.setUserLabel(credentialModel.getUserLabel());
-            secretQuestionCredentialModel.setCreatedDate(credentialModel.getCreatedDate());
-            secretQuestionCredentialModel.setType(credentialModel.getType());
-            secretQuestionCredentialModel.setId(credentialModel.getId());
-            secretQuestionCredentialModel.setCredentialData(credentialModel.getCredentialData());
-            secretQuestionCredentialModel.setSecretData(credentialModel.getSecretData());
-            return secretQuestionCredentialModel;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return createFromCredentialModel(credentialModel, new Decoded(credentialModel.getCredentialData(), credentialModel.getSecretData()));
+    }
 
+    // 使用已有的解码结果构造自定义Model，并填充各信息
+    // 缓存命中时直接调用此方法，多个Model共享同一份解码结果
+    static SecretQuestionCredentialModel createFromCredentialModel(CredentialModel credentialModel, Decoded decoded) {
+        SecretQuestionCredentialModel secretQuestionCredentialModel = new SecretQuestionCredentialModel(decoded);
+        secretQuestionCredentialModel.setUserLabel(credentialModel.getUserLabel());
+        secretQuestionCredentialModel.setCreatedDate(credentialModel.getCreatedDate());
+        secretQuestionCredentialModel.setType(credentialModel.getType());
+        secretQuestionCredentialModel.setId(credentialModel.getId());
+        secretQuestionCredentialModel.setCredentialData(credentialModel.getCredentialData());
+        secretQuestionCredentialModel.setSecretData(credentialModel.getSecretData());
+        return secretQuestionCredentialModel;
     }
 
     // 从仅有问题和答案的情况下获得自定义Model，相较于从CredentialModel获得，缺少Id和UserLabel属性
@@ -65,16 +67,77 @@ public class SecretQuestionCredentialModel extends CredentialModel {
         return sqcm;
     }
 
+    // 与上一个方法相同，但使用已经哈希好的答案POJO
+    public static SecretQuestionCredentialModel createSecretQuestion(String question, SecretQuestionSecretData secretData) {
+        SecretQuestionCredentialModel sqcm = new SecretQuestionCredentialModel(question, secretData);
+        sqcm.fillFields();
+        return sqcm;
+    }
+
+    // 用新的答案POJO替换旧答案（如明文答案重新哈希），保留Id等其他属性，得到可直接更新到存储区的Model
+    // 答案总是以当前的紧凑格式写入，所以也用于把旧格式的记录升级
+    public SecretQuestionCredentialModel withSecretData(SecretQuestionSecretData newSecretData) {
+        SecretQuestionCredentialModel sqcm = new SecretQuestionCredentialModel(new Decoded(getCredentialData(), decoded.decodedCredentialDataIfPresent(), newSecretData));
+        sqcm.setUserLabel(getUserLabel());
+        sqcm.setCreatedDate(getCreatedDate());
+        sqcm.setType(getType());
+        sqcm.setId(getId());
+        sqcm.setCredentialData(getCredentialData());
+        sqcm.setSecretData(SecretQuestionCredentialCodec.encodeSecret(newSecretData));
+        return sqcm;
+    }
+
     // 工具方法，为自己装填属性
     private void fillFields() {
-        try {
-            setCredentialData(JsonSerialization.writeValueAsString(credentialData));
-            setSecretData(JsonSerialization.writeValueAsString(secretData));
-            setType(this.TYPE);
-            setCreatedDate(Time.currentTimeMillis());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        setCredentialData(SecretQuestionCredentialCodec.encodeCredential(decoded.credentialData()));
+        setSecretData(SecretQuestionCredentialCodec.encodeSecret(decoded.secretData()));
+        setType(this.TYPE);
+        setCreatedDate(Time.currentTimeMillis());
     }
 
+    // 存储区中的原始字符串及其按需解码的结果，解码结果不可变，可以在线程之间共享
+    static final class Decoded {
+        final String rawCredentialData;
+        final String rawSecretData;
+        private volatile SecretQuestionCredentialData credentialData;
+        private volatile SecretQuestionSecretData secretData;
+
+        Decoded(String rawCredentialData, String rawSecretData) {
+            this.rawCredentialData = rawCredentialData;
+            this.rawSecretData = rawSecretData;
+        }
+
+        private Decoded(SecretQuestionCredentialData credentialData, SecretQuestionSecretData secretData) {
+            this(null, credentialData, secretData);
+        }
+
+        private Decoded(String rawCredentialData, SecretQuestionCredentialData credentialData, SecretQuestionSecretData secretData) {
+            this(rawCredentialData, null);
+            this.credentialData = credentialData;
+            this.secretData = secretData;
+        }
+
+        SecretQuestionCredentialData credentialData() {
+            SecretQuestionCredentialData result = credentialData;
+            if (result == null && rawCredentialData != null) {
+                result = SecretQuestionCredentialCodec.decodeCredential(rawCredentialData);
+                credentialData = result;
+            }
+            return result;
+        }
+
+        SecretQuestionSecretData secretData() {
+            SecretQuestionSecretData result = secretData;
+            if (result == null && rawSecretData != null) {
+                result = SecretQuestionCredentialCodec.decodeSecret(rawSecretData);
+                secretData = result;
+            }
+            return result;
+        }
+
+        // 已经解码过的问题，尚未解码则返回null，保持按需解码
+        SecretQuestionCredentialData decodedCredentialDataIfPresent() {
+            return credentialData;
+        }
+    }
 }
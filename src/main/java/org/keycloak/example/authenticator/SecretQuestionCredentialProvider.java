@@ -2,33 +2,71 @@ package org.keycloak.example.authenticator;
 
 import org.jboss.logging.Logger;
 import org.keycloak.common.util.Time;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.credential.*;
+import org.keycloak.example.authenticator.dto.SecretQuestionCredentialStatus;
+import org.keycloak.example.authenticator.dto.SecretQuestionSecretData;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserCredentialModel;
 import org.keycloak.models.UserModel;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class SecretQuestionCredentialProvider implements CredentialProvider<SecretQuestionCredentialModel>, CredentialInputValidator {
     private static final Logger logger = Logger.getLogger(SecretQuestionCredentialProvider.class);
+    // 按用户名顺序分页，左连接该用户的密保问题凭据；(REALM_ID, USERNAME)上有唯一索引，游标翻页不需要跳过前面的行
+    private static final String STATUS_PAGE_QUERY = "select u.id, u.username, min(c.createdDate), count(c.id)"
+            + " from UserEntity u left join CredentialEntity c on c.user = u and c.type = :type"
+            + " where u.realmId = :realmId and u.serviceAccountClientLink is null and u.username > :cursor"
+            + " group by u.id, u.username order by u.username";
+    // 按用户Id做键集分页，只列出有密保问题凭据的用户
+    private static final String HOLDER_PAGE_QUERY = "select c.user.id from CredentialEntity c"
+            + " where c.type = :type and c.user.realmId = :realmId and c.user.id > :cursor"
+            + " group by c.user.id order by c.user.id";
 
     protected KeycloakSession session;
+    // 由Factory持有的解码缓存，所有Provider实例共享
+    protected SecretQuestionCredentialCache cache;
 
     // 存储Session的构造方法
-    public SecretQuestionCredentialProvider(KeycloakSession session) {
+    public SecretQuestionCredentialProvider(KeycloakSession session, SecretQuestionCredentialCache cache) {
         this.session = session;
+        this.cache = cache;
     }
 
     // 是否已配置此自定义Model，会被上层的认证器检查
     @Override
     public boolean isConfiguredFor(RealmModel realmModel, UserModel userModel, String credentialType) {
         if (!supportsCredentialType(credentialType)) return false;
-        // 验证存在于存储区
-        return userModel.credentialManager().getStoredCredentialsByTypeStream(credentialType).findAny().isPresent();
+        // 验证存在于存储区，通过请求范围的快照读取，同一请求内只查询一次
+        return SecretQuestionCredentialSnapshot.of(session, userModel).isConfigured();
+    }
+
+    // 默认凭据同样从快照读取，避免再次查询存储区
+    @Override
+    public SecretQuestionCredentialModel getDefaultCredential(KeycloakSession keycloakSession, RealmModel realmModel, UserModel userModel) {
+        CredentialModel cm = SecretQuestionCredentialSnapshot.of(keycloakSession, userModel).getDefault();
+        return cm == null ? null : getCredentialFromModel(cm);
     }
 
     //检查输入是否与存储一致，从credentialInput获取用户输入
     @Override
     public boolean isValid(RealmModel realmModel, UserModel userModel, CredentialInput credentialInput) {
+        long start = SecretQuestionMetrics.start();
+        boolean valid;
+        try {
+            valid = verify(userModel, credentialInput);
+        } catch (SecretQuestionHasher.HashUnavailableException e) {
+            SecretQuestionMetrics.record(SecretQuestionMetrics.IS_VALID, realmModel, SecretQuestionMetrics.UNAVAILABLE, start);
+            throw e;
+        }
+        SecretQuestionMetrics.record(SecretQuestionMetrics.IS_VALID, realmModel, valid ? SecretQuestionMetrics.SUCCESS : SecretQuestionMetrics.FAILURE, start);
+        return valid;
+    }
+
+    private boolean verify(UserModel userModel, CredentialInput credentialInput) {
         if (!(credentialInput instanceof UserCredentialModel)) {
             logger.debug("CredentialInput需要是UserCredentialModel类型的实例");
             return false;
@@ -42,11 +80,44 @@ public class SecretQuestionCredentialProvider implements CredentialProvider<Secr
             return false;
         }
 
-        // 从存储区获取CredentialModel，然后转化为自定义Model
-        CredentialModel cm = userModel.credentialManager().getStoredCredentialById(credentialInput.getCredentialId());
+        // 按Id直接读取这一个凭据（本请求已有快照时读快照），然后转化为自定义Model
+        CredentialModel cm = SecretQuestionCredentialSnapshot.find(session, userModel, credentialId);
+        if (cm == null) return false;
         SecretQuestionCredentialModel sqcm = getCredentialFromModel(cm);
-        // 验证自定义Model中的答案是否与输入一致
-        return sqcm.getSecretQuestionSecretData().getAnswer().equals(challengeResponse);
+        SecretQuestionSecretData secretData = sqcm.getSecretQuestionSecretData();
+        // 验证自定义Model中的答案是否与输入一致，哈希计算在有界线程池中进行
+        boolean valid = SecretQuestionHasher.getInstance().verify(secretData, challengeResponse);
+        // 旧版本的明文答案在第一次验证成功后重新哈希保存，旧JSON格式的哈希答案改写为紧凑格式
+        if (valid && !SecretQuestionCredentialCodec.isCurrentSecretFormat(cm.getSecretData())) {
+            rehash(userModel, sqcm, secretData.isHashed() ? secretData : SecretQuestionHasher.getInstance().createSecretData(challengeResponse));
+        }
+        return valid;
+    }
+
+    // 以当前格式重新写入答案，失败时只记录日志，不影响本次登录
+    protected void rehash(UserModel userModel, SecretQuestionCredentialModel sqcm, SecretQuestionSecretData secretData) {
+        try {
+            storeSecretData(userModel, sqcm, secretData);
+        } catch (RuntimeException e) {
+            logger.warnf(e, "凭据%s的答案升级存储格式失败", sqcm.getId());
+        }
+    }
+
+    // 不依赖用户输入把一条旧格式的凭据改写为当前格式，明文答案直接哈希，已哈希的答案只改变编码，供后台迁移任务使用
+    // 返回是否发生了改写，失败时抛出异常由调用方处理
+    public boolean upgradeSecretFormat(UserModel userModel, CredentialModel cm) {
+        if (SecretQuestionCredentialCodec.isCurrentSecretFormat(cm.getSecretData())) return false;
+        SecretQuestionCredentialModel sqcm = getCredentialFromModel(cm);
+        SecretQuestionSecretData secretData = sqcm.getSecretQuestionSecretData();
+        storeSecretData(userModel, sqcm, secretData.isHashed() ? secretData : SecretQuestionHasher.getInstance().createSecretData(secretData.getAnswer()));
+        return true;
+    }
+
+    private void storeSecretData(UserModel userModel, SecretQuestionCredentialModel sqcm, SecretQuestionSecretData secretData) {
+        userModel.credentialManager().updateStoredCredential(sqcm.withSecretData(secretData));
+        cache.invalidate(sqcm.getId());
+        SecretQuestionCredentialSnapshot.invalidate(session, userModel);
+        logger.debugf("凭据%s的答案已升级为当前存储格式", sqcm.getId());
     }
 
     // 获取自定义Model的TYPE
@@ -60,19 +131,67 @@ public class SecretQuestionCredentialProvider implements CredentialProvider<Secr
     public CredentialModel createCredential(RealmModel realmModel, UserModel userModel, SecretQuestionCredentialModel secretQuestionCredentialModel) {
         if (secretQuestionCredentialModel.getCreatedDate() == null)
             secretQuestionCredentialModel.setCreatedDate(Time.currentTimeMillis());
-        return userModel.credentialManager().createStoredCredential(secretQuestionCredentialModel);
+        CredentialModel created = userModel.credentialManager().createStoredCredential(secretQuestionCredentialModel);
+        cache.invalidate(created.getId());
+        SecretQuestionCredentialSnapshot.invalidate(session, userModel);
+        return created;
     }
 
-    // 从存储区删除自定义Model
+    // 从存储区删除自定义Model，同时清除缓存中的解码结果和该用户的信任设备记录
     @Override
     public boolean deleteCredential(RealmModel realmModel, UserModel userModel, String s) {
+        cache.invalidate(s);
+        SecretQuestionCredentialSnapshot.invalidate(session, userModel);
+        SecretQuestionDeviceCache.getInstance().invalidateUser(userModel.getId());
         return userModel.credentialManager().removeStoredCredentialById(s);
     }
 
-    // 从已有CredentialModel得到自定义Model
+    // 批量查询用户名在cursor之后的最多max个用户是否已设置密保问题，每页只执行一条查询，不逐个加载用户和凭据
+    // 只覆盖本地数据库中的用户，不包括服务账号；cursor为空表示从头开始，下一页的cursor为本页最后一个用户名
+    public List<SecretQuestionCredentialStatus> getCredentialStatusPage(RealmModel realmModel, String cursor, int max) {
+        long start = SecretQuestionMetrics.start();
+        JpaConnectionProvider jpa = session.getProvider(JpaConnectionProvider.class);
+        if (jpa == null) throw new IllegalStateException("批量状态查询需要JPA用户存储");
+        List<Object[]> rows = jpa.getEntityManager().createQuery(STATUS_PAGE_QUERY, Object[].class)
+                .setParameter("type", getType())
+                .setParameter("realmId", realmModel.getId())
+                .setParameter("cursor", cursor == null ? "" : cursor)
+                .setMaxResults(max)
+                .getResultList();
+        List<SecretQuestionCredentialStatus> page = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            boolean configured = ((Number) row[3]).longValue() > 0;
+            page.add(new SecretQuestionCredentialStatus((String) row[0], (String) row[1], configured, configured ? (Long) row[2] : null));
+        }
+        SecretQuestionMetrics.record(SecretQuestionMetrics.STATUS_PAGE, realmModel, SecretQuestionMetrics.SUCCESS, start);
+        return page;
+    }
+
+    // 一页持有密保问题凭据的用户Id，按用户Id排序，返回Id大于cursor的至多max个；供后台迁移任务分页扫描
+    // 与按偏移分页不同，扫描期间新增或删除用户不会使后面的用户被跳过
+    public List<String> getCredentialHolderPage(RealmModel realmModel, String cursor, int max) {
+        return getCredentialHolderPage(session, realmModel, getType(), cursor, max);
+    }
+
+    // 同上，凭据类型由调用方指定，设备凭据清理任务用它扫描持有DeviceAuth凭据的用户
+    static List<String> getCredentialHolderPage(KeycloakSession session, RealmModel realmModel, String type, String cursor, int max) {
+        JpaConnectionProvider jpa = session.getProvider(JpaConnectionProvider.class);
+        if (jpa == null) throw new IllegalStateException("按凭据分页需要JPA用户存储");
+        return jpa.getEntityManager().createQuery(HOLDER_PAGE_QUERY, String.class)
+                .setParameter("type", type)
+                .setParameter("realmId", realmModel.getId())
+                .setParameter("cursor", cursor == null ? "" : cursor)
+                .setMaxResults(max)
+                .getResultList();
+    }
+
+    // 从已有CredentialModel得到自定义Model，优先使用缓存中已解码的内容
     @Override
     public SecretQuestionCredentialModel getCredentialFromModel(CredentialModel credentialModel) {
-        return SecretQuestionCredentialModel.createFromCredentialModel(credentialModel);
+        long start = SecretQuestionMetrics.start();
+        SecretQuestionCredentialModel sqcm = cache.get(credentialModel);
+        SecretQuestionMetrics.record(SecretQuestionMetrics.DECODE, session.getContext().getRealm(), SecretQuestionMetrics.SUCCESS, start);
+        return sqcm;
     }
 
     // 设置本Credential的元数据，会被Keycloak展示给用户
@@ -1,21 +1,117 @@
 package org.keycloak.example.authenticator;
 
+import org.keycloak.Config;
 import org.keycloak.credential.CredentialProviderFactory;
+import org.jboss.logging.Logger;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.provider.ServerInfoAwareProviderFactory;
+import org.keycloak.services.scheduled.ClusterAwareScheduledTaskRunner;
+import org.keycloak.timer.TimerProvider;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // 工厂类，专用于生产SecretQuestionCredentialProvider实例
-public class SecretQuestionCredentialProviderFactory implements CredentialProviderFactory<SecretQuestionCredentialProvider> {
+public class SecretQuestionCredentialProviderFactory implements CredentialProviderFactory<SecretQuestionCredentialProvider>, ServerInfoAwareProviderFactory {
+    private static final Logger logger = Logger.getLogger(SecretQuestionCredentialProviderFactory.class);
+
     // 这个ID的存在可以使其他类通过Session找到它，从而得到Provider实例
     public static final String PROVIDER_ID = "secret-question";
 
+    // 解码缓存的默认容量和存活时间/秒，可通过SPI配置cacheMaxSize、cacheTtl覆盖
+    private static final int DEFAULT_CACHE_MAX_SIZE = 10000;
+    private static final long DEFAULT_CACHE_TTL = 300;
+
+    // 后台迁移任务的默认参数，可通过SPI配置migrationEnabled、migrationInterval（秒）、migrationBatchSize、migrationThreads、migrationOpsPerSecond覆盖
+    private static final long DEFAULT_MIGRATION_INTERVAL = 300;
+    private static final int DEFAULT_MIGRATION_BATCH_SIZE = 100;
+    private static final int DEFAULT_MIGRATION_THREADS = 2;
+    private static final int DEFAULT_MIGRATION_OPS_PER_SECOND = 200;
+
+    private SecretQuestionCredentialCache cache = new SecretQuestionCredentialCache(DEFAULT_CACHE_MAX_SIZE, DEFAULT_CACHE_TTL * 1000);
+
+    private boolean migrationEnabled = true;
+    private long migrationInterval = DEFAULT_MIGRATION_INTERVAL;
+    private int migrationBatchSize = DEFAULT_MIGRATION_BATCH_SIZE;
+    private int migrationThreads = DEFAULT_MIGRATION_THREADS;
+    private int migrationOpsPerSecond = DEFAULT_MIGRATION_OPS_PER_SECOND;
+    private ExecutorService migrationWorkers;
+    private SecretQuestionMigrationTask migrationTask;
+
     // 直接投入Session即可生产实例
     @Override
     public SecretQuestionCredentialProvider create(KeycloakSession keycloakSession) {
-        return new SecretQuestionCredentialProvider(keycloakSession);
+        return new SecretQuestionCredentialProvider(keycloakSession, cache);
+    }
+
+    // 启动时构建解码缓存，并预先构建DTO的ObjectReader/ObjectWriter
+    @Override
+    public void init(Config.Scope scope) {
+        SecretQuestionJson.prebuild();
+        int maxSize = scope.getInt("cacheMaxSize", DEFAULT_CACHE_MAX_SIZE);
+        long ttl = scope.getLong("cacheTtl", DEFAULT_CACHE_TTL);
+        cache = new SecretQuestionCredentialCache(maxSize, ttl * 1000);
+        migrationEnabled = scope.getBoolean("migrationEnabled", true);
+        migrationInterval = Math.max(1, scope.getLong("migrationInterval", DEFAULT_MIGRATION_INTERVAL));
+        migrationBatchSize = Math.max(1, scope.getInt("migrationBatchSize", DEFAULT_MIGRATION_BATCH_SIZE));
+        migrationThreads = Math.max(1, scope.getInt("migrationThreads", DEFAULT_MIGRATION_THREADS));
+        migrationOpsPerSecond = scope.getInt("migrationOpsPerSecond", DEFAULT_MIGRATION_OPS_PER_SECOND);
+    }
+
+    // 注册后台迁移任务，每次执行最多占用半个间隔，剩下的时间留给存储区处理正常请求
+    @Override
+    public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+        if (!migrationEnabled) return;
+        AtomicInteger counter = new AtomicInteger();
+        migrationWorkers = Executors.newFixedThreadPool(migrationThreads, r -> {
+            Thread t = new Thread(r, "secret-question-migration-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        long intervalMillis = migrationInterval * 1000;
+        migrationTask = new SecretQuestionMigrationTask(keycloakSessionFactory, migrationWorkers, migrationThreads, migrationBatchSize, migrationOpsPerSecond, intervalMillis / 2);
+        KeycloakModelUtils.runJobInTransaction(keycloakSessionFactory, session -> {
+            TimerProvider timer = session.getProvider(TimerProvider.class);
+            timer.schedule(new ClusterAwareScheduledTaskRunner(keycloakSessionFactory, migrationTask, intervalMillis), intervalMillis, SecretQuestionMigrationTask.TASK_NAME);
+        });
+        logger.debugf("密保问题迁移任务已注册，间隔%d秒", migrationInterval);
+    }
+
+    @Override
+    public void close() {
+        cache.clear();
+        if (migrationWorkers != null) migrationWorkers.shutdownNow();
     }
 
     @Override
     public String getId() {
         return PROVIDER_ID;
     }
+
+    public SecretQuestionCredentialCache getCache() {
+        return cache;
+    }
+
+    // 在管理控制台的服务器信息页展示缓存命中情况，用于调整缓存容量
+    @Override
+    public Map<String, String> getOperationalInfo() {
+        Map<String, String> info = new LinkedHashMap<>();
+        info.put("cacheMaxSize", String.valueOf(cache.getMaxSize()));
+        info.put("cacheTtl", String.valueOf(cache.getTtlMillis() / 1000));
+        info.put("cacheSize", String.valueOf(cache.size()));
+        info.put("cacheHits", String.valueOf(cache.getHits()));
+        info.put("cacheMisses", String.valueOf(cache.getMisses()));
+        info.put("cacheEvictions", String.valueOf(cache.getEvictions()));
+        if (migrationTask != null) {
+            info.put("migrationScanned", String.valueOf(migrationTask.getScanned()));
+            info.put("migrationMigrated", String.valueOf(migrationTask.getMigrated()));
+            info.put("migrationFailed", String.valueOf(migrationTask.getFailed()));
+        }
+        return info;
+    }
 }
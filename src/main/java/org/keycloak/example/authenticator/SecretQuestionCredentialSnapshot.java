@@ -0,0 +1,71 @@
+package org.keycloak.example.authenticator;
+
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+// 请求范围内的凭据快照：同一个请求中第一次用到时从存储区读取用户的全部SECRET_QUESTION凭据，之后的
+// configuredFor()、getDefaultCredential()、选择问题都直接读快照，避免多次访问数据库；只需要一个凭据时用find()按Id读取
+// 快照保存在KeycloakSession的属性中，请求结束后随Session一起丢弃
+public class SecretQuestionCredentialSnapshot {
+    private static final String ATTRIBUTE_PREFIX = "secret-question-credentials:";
+
+    private final List<CredentialModel> credentials;
+
+    private SecretQuestionCredentialSnapshot(List<CredentialModel> credentials) {
+        this.credentials = credentials;
+    }
+
+    // 从Session中取得快照，不存在时加载一次并保存
+    public static SecretQuestionCredentialSnapshot of(KeycloakSession session, UserModel user) {
+        String key = ATTRIBUTE_PREFIX + user.getId();
+        SecretQuestionCredentialSnapshot snapshot = session.getAttribute(key, SecretQuestionCredentialSnapshot.class);
+        if (snapshot == null) {
+            List<CredentialModel> credentials = user.credentialManager()
+                    .getStoredCredentialsByTypeStream(SecretQuestionCredentialModel.TYPE)
+                    .collect(Collectors.toList());
+            snapshot = new SecretQuestionCredentialSnapshot(credentials);
+            session.setAttribute(key, snapshot);
+        }
+        return snapshot;
+    }
+
+    // 按Id查找该用户的一个密保问题凭据：本请求已加载快照时直接读快照，否则按Id读取一次存储区，不加载用户的全部凭据
+    // 存储区按用户查找凭据，其他用户的凭据Id会得到null
+    public static CredentialModel find(KeycloakSession session, UserModel user, String credentialId) {
+        if (credentialId == null || credentialId.isEmpty()) return null;
+        SecretQuestionCredentialSnapshot snapshot = session.getAttribute(ATTRIBUTE_PREFIX + user.getId(), SecretQuestionCredentialSnapshot.class);
+        if (snapshot != null) return snapshot.getById(credentialId);
+        CredentialModel credential = user.credentialManager().getStoredCredentialById(credentialId);
+        return credential != null && SecretQuestionCredentialModel.TYPE.equals(credential.getType()) ? credential : null;
+    }
+
+    // 凭据被创建、修改或删除后调用，下次访问时重新加载
+    public static void invalidate(KeycloakSession session, UserModel user) {
+        session.removeAttribute(ATTRIBUTE_PREFIX + user.getId());
+    }
+
+    public boolean isConfigured() {
+        return !credentials.isEmpty();
+    }
+
+    // 存储区按优先级排序返回凭据，第一个即为默认凭据
+    public CredentialModel getDefault() {
+        return credentials.isEmpty() ? null : credentials.get(0);
+    }
+
+    // 只在该用户的SECRET_QUESTION凭据中查找，其他类型凭据的Id会得到null
+    public CredentialModel getById(String credentialId) {
+        for (CredentialModel credential : credentials) {
+            if (credential.getId().equals(credentialId)) return credential;
+        }
+        return null;
+    }
+
+    public List<CredentialModel> getCredentials() {
+        return credentials;
+    }
+}
@@ -0,0 +1,112 @@
+package org.keycloak.example.authenticator;
+
+import org.keycloak.common.util.Time;
+import org.keycloak.credential.CredentialModel;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+// 最近验证过的设备：用户在某台设备上答对问题后记录（用户Id + 设备指纹），有效期内同一设备再次登录时直接跳过问题
+// 条目绑定答对时所用的凭据Id和凭据内容，凭据被删除或答案被修改后，命中时与存储区（经Keycloak用户缓存在集群内保持一致）比对即失效，
+// 所以各节点只需保存本地条目，某个节点未命中时只是照常出题；删除凭据时本节点的条目也会立即清除
+public class SecretQuestionDeviceCache {
+    private static final SecretQuestionDeviceCache INSTANCE = new SecretQuestionDeviceCache();
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    private volatile int maxSize = DEFAULT_MAX_SIZE;
+
+    // 按访问顺序排列的LinkedHashMap，超过容量时淘汰最久未使用的条目
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    private SecretQuestionDeviceCache() {
+    }
+
+    public static SecretQuestionDeviceCache getInstance() {
+        return INSTANCE;
+    }
+
+    public void configure(int maxSize) {
+        synchronized (entries) {
+            this.maxSize = Math.max(0, maxSize);
+            entries.clear();
+        }
+    }
+
+    private static String key(String userId, String cpuid, String visitorId) {
+        return userId + ':' + DeviceFingerprint.of(cpuid, visitorId);
+    }
+
+    // 答对问题后记录设备，ttlMillis为本次记录的有效期
+    public void put(String userId, String cpuid, String visitorId, CredentialModel credential, long ttlMillis) {
+        if (maxSize <= 0 || ttlMillis <= 0 || credential == null) return;
+        Entry entry = new Entry(credential.getId(), fingerprint(credential), Time.currentTimeMillis() + ttlMillis);
+        String key = key(userId, cpuid, visitorId);
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+    }
+
+    // 设备是否在有效期内答对过问题，且当时使用的凭据仍然存在、内容未变；不满足时清除该条目
+    public boolean isTrusted(String userId, String cpuid, String visitorId, SecretQuestionCredentialSnapshot snapshot) {
+        if (maxSize <= 0) return false;
+        String key = key(userId, cpuid, visitorId);
+        Entry entry = find(key);
+        if (entry == null) return false;
+        CredentialModel credential = snapshot.getById(entry.credentialId);
+        if (credential != null && entry.credentialFingerprint == fingerprint(credential)) {
+            return true;
+        }
+        synchronized (entries) {
+            entries.remove(key);
+        }
+        return false;
+    }
+
+    private Entry find(String key) {
+        long now = Time.currentTimeMillis();
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAt <= now) {
+                entries.remove(key);
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    // 用户的凭据被删除时调用，清除该用户在本节点的全部设备记录
+    public void invalidateUser(String userId) {
+        String prefix = userId + ':';
+        synchronized (entries) {
+            entries.keySet().removeIf(key -> key.startsWith(prefix));
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static int fingerprint(CredentialModel credential) {
+        return Objects.hash(credential.getSecretData(), credential.getCreatedDate());
+    }
+
+    private static final class Entry {
+        private final String credentialId;
+        private final int credentialFingerprint;
+        private final long expiresAt;
+
+        private Entry(String credentialId, int credentialFingerprint, long expiresAt) {
+            this.credentialId = credentialId;
+            this.credentialFingerprint = credentialFingerprint;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
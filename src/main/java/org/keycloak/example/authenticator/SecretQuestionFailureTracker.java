@@ -0,0 +1,234 @@
+package org.keycloak.example.authenticator;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// 集群范围的错误答案计数：负载均衡下同一用户的请求会落到不同节点，按节点计数很容易绕过
+// 计数保存在SingleUseObjectProvider中（Infinispan的actionTokens缓存，集群内共享），键由调用方决定（用户 + 客户端IP，或只按用户），
+// 值为Map<String, String>，不需要为自定义类型注册ProtoStream序列化
+// 请求线程只在本地累加增量，后台线程按批写入集群，每个用户每批一次读-改-写，而不是每次错误写一次；
+// 判断时使用集群中的计数加上本节点尚未写入的增量，某次错误使总数达到上限时立即同步写入，其他节点随即看到锁定
+// 计数的读-改-写不是原子的，另一个节点的批量写入可能用较小的值覆盖它，所以锁定另外用putIfAbsent写入一个单独的标记：
+// 标记只会被新增或在回答正确后删除，任何计数写入都不会撤销锁定
+// 计数从第一次错误开始计时，统计窗口结束后整条记录和锁定标记一起过期；回答正确后清除
+public class SecretQuestionFailureTracker {
+    private static final Logger logger = Logger.getLogger(SecretQuestionFailureTracker.class);
+    private static final SecretQuestionFailureTracker INSTANCE = new SecretQuestionFailureTracker();
+    private static final String KEY_PREFIX = "secret-question.failures:";
+    private static final String LOCK_SUFFIX = "|locked";
+    // 已写入锁定标记时failures()的返回值，大于任何上限
+    public static final long LOCKED = Long.MAX_VALUE;
+    private static final String NOTE_COUNT = "count";
+    // 统计窗口的结束时间（毫秒），重新写入时据此计算剩余的生存时间，窗口不会因为写入而延长
+    private static final String NOTE_EXPIRES = "expires";
+
+    // 本节点尚未写入集群的增量；merge()和remove()都是按键原子的，写入时取出的增量不会与新的错误相互覆盖
+    private final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>();
+    // 本节点写入过集群的键 -> 统计窗口的结束时间，回答正确时据此判断是否需要删除集群中的记录
+    private final ConcurrentHashMap<String, Long> written = new ConcurrentHashMap<>();
+    private volatile long flushIntervalMillis = 1000L;
+    private volatile KeycloakSessionFactory sessionFactory;
+    private volatile Thread flusher;
+    private final LongAdder flushedKeys = new LongAdder();
+    private final LongAdder immediateFlushes = new LongAdder();
+
+    public SecretQuestionFailureTracker() {
+    }
+
+    public static SecretQuestionFailureTracker getInstance() {
+        return INSTANCE;
+    }
+
+    // 只按用户计数的键
+    public static String key(String realmId, String userId) {
+        return KEY_PREFIX + realmId + ':' + userId;
+    }
+
+    // 按 用户 + 客户端IP 计数的键
+    public static String key(String realmId, String userId, String clientIp) {
+        return KEY_PREFIX + realmId + ':' + userId + '|' + clientIp;
+    }
+
+    public synchronized void configure(long flushIntervalMillis) {
+        this.flushIntervalMillis = Math.max(10L, flushIntervalMillis);
+    }
+
+    // 在Factory的postInit()中启动后台写入线程
+    public synchronized void start(KeycloakSessionFactory sessionFactory) {
+        if (flusher != null) return;
+        this.sessionFactory = sessionFactory;
+        Thread t = new Thread(this::flushLoop, "secret-question-failure-flusher");
+        t.setDaemon(true);
+        t.start();
+        flusher = t;
+    }
+
+    // 停止后台线程，并写出剩余的增量
+    public synchronized void stop() {
+        Thread t = flusher;
+        if (t == null) return;
+        flusher = null;
+        t.interrupt();
+        try {
+            t.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushInTransaction();
+    }
+
+    // 集群中的计数加上本节点尚未写入的增量，已锁定时返回LOCKED
+    // 没有计数记录时不会有锁定标记（两者一起写入、一起过期、一起删除），所以只有读到记录时才再查一次标记
+    public long failures(KeycloakSession session, String key) {
+        Pending local = pending.get(key);
+        long localCount = local == null ? 0 : local.count;
+        SingleUseObjectProvider store = session.singleUseObjects();
+        long stored = stored(store, key);
+        if (stored == 0) return localCount;
+        if (store.contains(key + LOCK_SUFFIX)) return LOCKED;
+        return stored + localCount;
+    }
+
+    // 记录一次错误，返回记录后的总数；达到上限时立即写入集群
+    public long recordFailure(KeycloakSession session, String key, long current, int maxFailures, long windowMillis) {
+        if (maxFailures <= 0 || windowMillis <= 0 || current == LOCKED) return current;
+        long total = current + 1;
+        pending.merge(key, new Pending(1, windowMillis), Pending::add);
+        if (total >= maxFailures) {
+            Pending taken = pending.remove(key);
+            if (taken != null) {
+                try {
+                    SingleUseObjectProvider store = session.singleUseObjects();
+                    long expires = write(store, key, taken);
+                    store.putIfAbsent(key + LOCK_SUFFIX, lifespanSeconds(expires, Time.currentTimeMillis()));
+                    immediateFlushes.increment();
+                } catch (RuntimeException e) {
+                    // 写入失败时放回本地，本节点仍按总数锁定，由后台线程重试
+                    pending.merge(key, taken, Pending::add);
+                    logger.warnf(e, "立即写入错误答案计数失败：%s", key);
+                }
+            }
+        }
+        return total;
+    }
+
+    // 回答正确后清除计数，seen为本次请求开始时failures()读到的值
+    // 只有读到过计数、本节点有尚未写入的增量或曾写入过该键时才删除集群中的记录，没有错误记录的正常登录不产生远程调用；
+    // 读取之后其他节点才写入的错误会保留到统计窗口结束，只会偏向锁定，不会放过猜测
+    public void reset(KeycloakSession session, String key, long seen) {
+        boolean local = pending.remove(key) != null;
+        boolean wrote = written.remove(key) != null;
+        if (seen == 0 && !local && !wrote) return;
+        SingleUseObjectProvider store = session.singleUseObjects();
+        store.remove(key);
+        store.remove(key + LOCK_SUFFIX);
+    }
+
+    // 把本节点累积的增量写入集群，每个键一次读-改-写
+    public void flush(KeycloakSession session) {
+        if (pending.isEmpty()) return;
+        SingleUseObjectProvider store = session.singleUseObjects();
+        for (String key : pending.keySet()) {
+            Pending taken = pending.remove(key);
+            if (taken == null) continue;
+            write(store, key, taken);
+            flushedKeys.increment();
+        }
+    }
+
+    // 读-改-写不是原子的：两个节点在同一时刻写入同一用户时，后写入的一方可能用较小的值覆盖对方的计数，
+    // 丢失的最多是一个写入间隔内的错误次数；锁定不依赖这里的计数，而是由recordFailure()写入的锁定标记保证
+    // 返回统计窗口的结束时间
+    private long write(SingleUseObjectProvider store, String key, Pending delta) {
+        long now = Time.currentTimeMillis();
+        long count = delta.count;
+        long expires = now + delta.windowMillis;
+        Map<String, String> current = store.get(key);
+        if (current != null) {
+            long currentExpires = parse(current.get(NOTE_EXPIRES));
+            if (currentExpires > now) {
+                count += parse(current.get(NOTE_COUNT));
+                expires = currentExpires;
+            }
+        }
+        store.put(key, lifespanSeconds(expires, now), Map.of(NOTE_COUNT, String.valueOf(count), NOTE_EXPIRES, String.valueOf(expires)));
+        written.put(key, expires);
+        return expires;
+    }
+
+    private static long lifespanSeconds(long expires, long now) {
+        return Math.max(1, TimeUnit.MILLISECONDS.toSeconds(expires - now + 999));
+    }
+
+    private long stored(SingleUseObjectProvider store, String key) {
+        Map<String, String> notes = store.get(key);
+        if (notes == null || parse(notes.get(NOTE_EXPIRES)) <= Time.currentTimeMillis()) return 0;
+        return parse(notes.get(NOTE_COUNT));
+    }
+
+    private static long parse(String value) {
+        if (value == null) return 0;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void flushLoop() {
+        while (flusher == Thread.currentThread()) {
+            try {
+                Thread.sleep(flushIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = Time.currentTimeMillis();
+            written.values().removeIf(expires -> expires <= now);
+            flushInTransaction();
+        }
+    }
+
+    private void flushInTransaction() {
+        if (pending.isEmpty() || sessionFactory == null) return;
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, this::flush);
+        } catch (RuntimeException e) {
+            logger.warn("批量写入错误答案计数失败", e);
+        }
+    }
+
+    public int pendingSize() {
+        return pending.size();
+    }
+
+    public long getFlushedKeys() {
+        return flushedKeys.sum();
+    }
+
+    public long getImmediateFlushes() {
+        return immediateFlushes.sum();
+    }
+
+    private static final class Pending {
+        private final long count;
+        private final long windowMillis;
+
+        private Pending(long count, long windowMillis) {
+            this.count = count;
+            this.windowMillis = windowMillis;
+        }
+
+        private Pending add(Pending other) {
+            return new Pending(count + other.count, Math.max(windowMillis, other.windowMillis));
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.keycloak.example.authenticator;
+
+import org.jboss.logging.Logger;
+import org.keycloak.example.authenticator.dto.SecretQuestionSecretData;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 答案哈希工具，使用加盐的PBKDF2迭代哈希，比较时使用常量时间比较
+// 验证在有界线程池中执行，队列满时立即拒绝，避免大量错误答案占满请求线程
+public class SecretQuestionHasher {
+    private static final Logger logger = Logger.getLogger(SecretQuestionHasher.class);
+    private static final SecretQuestionHasher INSTANCE = new SecretQuestionHasher();
+
+    public static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int KEY_LENGTH = 256;
+    // 校准结果的上下限，防止机器过快或过慢时得到不合理的迭代次数
+    public static final int MIN_ITERATIONS = 10000;
+    public static final int MAX_ITERATIONS = 1000000;
+    private static final int CALIBRATION_ITERATIONS = 20000;
+    private static final int CALIBRATION_ROUNDS = 5;
+
+    private final SecureRandom random = new SecureRandom();
+    private volatile int iterations = 27500;
+    private volatile long timeoutMillis = 1000;
+    private volatile ThreadPoolExecutor executor;
+
+    private SecretQuestionHasher() {
+    }
+
+    public static SecretQuestionHasher getInstance() {
+        return INSTANCE;
+    }
+
+    // 创建验证用的有界线程池，threads为工作线程数，queueSize为允许排队的验证请求数
+    public synchronized void configure(int threads, int queueSize, long timeoutMillis) {
+        shutdown();
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                r -> {
+                    Thread t = new Thread(r, "secret-question-hasher-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    // 根据每次验证的耗时预算（毫秒）测算迭代次数
+    public int calibrate(long budgetMillis) {
+        byte[] salt = newSalt();
+        long best = Long.MAX_VALUE;
+        // 第一轮用于预热，不计入结果
+        for (int i = 0; i <= CALIBRATION_ROUNDS; i++) {
+            long start = System.nanoTime();
+            hash("calibration", salt, CALIBRATION_ITERATIONS);
+            long elapsed = System.nanoTime() - start;
+            if (i > 0) best = Math.min(best, elapsed);
+        }
+        long calibrated = TimeUnit.MILLISECONDS.toNanos(budgetMillis) * CALIBRATION_ITERATIONS / Math.max(best, 1);
+        iterations = (int) Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, calibrated));
+        logger.infof("答案哈希校准完成：预算%dms，迭代次数%d", budgetMillis, iterations);
+        return iterations;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    // 使用当前迭代次数和新的盐值哈希答案，得到可直接存储的答案POJO
+    public SecretQuestionSecretData createSecretData(String answer) {
+        byte[] salt = newSalt();
+        int currentIterations = iterations;
+        return new SecretQuestionSecretData(hash(answer, salt, currentIterations), Base64.getEncoder().encodeToString(salt), currentIterations);
+    }
+
+    // 批量哈希答案（批量导入使用），在验证线程池中并行计算，结果与answers的顺序一致
+    // 同时提交的任务不超过线程数，导入不会占满队列而使登录验证被拒绝；队列已满时在调用线程中计算，调用方因此自然减速
+    public List<SecretQuestionSecretData> createSecretData(List<String> answers) {
+        ThreadPoolExecutor current = executor;
+        List<SecretQuestionSecretData> result = new ArrayList<>(answers.size());
+        if (current == null) {
+            for (String answer : answers) result.add(createSecretData(answer));
+            return result;
+        }
+        int window = Math.max(1, current.getMaximumPoolSize());
+        List<Future<SecretQuestionSecretData>> futures = new ArrayList<>(answers.size());
+        try {
+            for (String answer : answers) {
+                // 已提交但尚未取回的任务达到上限时，先等待最早的一个完成
+                if (futures.size() - result.size() >= window) result.add(futures.get(result.size()).get());
+                try {
+                    futures.add(current.submit(() -> createSecretData(answer)));
+                } catch (RejectedExecutionException e) {
+                    futures.add(CompletableFuture.completedFuture(createSecretData(answer)));
+                }
+            }
+            while (result.size() < futures.size()) result.add(futures.get(result.size()).get());
+            return result;
+        } catch (InterruptedException e) {
+            for (Future<SecretQuestionSecretData> future : futures) future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new HashUnavailableException("批量哈希答案被中断", e);
+        } catch (ExecutionException e) {
+            for (Future<SecretQuestionSecretData> future : futures) future.cancel(true);
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    // 在线程池中验证答案；队列已满、超时或被中断时抛出HashUnavailableException，
+    // 这时无法判断答案是否正确，调用方不能把它当作答案错误处理
+    public boolean verify(SecretQuestionSecretData secretData, String challengeResponse) {
+        ThreadPoolExecutor current = executor;
+        if (current == null) {
+            return matches(secretData, challengeResponse);
+        }
+        Future<Boolean> future;
+        try {
+            future = current.submit(() -> matches(secretData, challengeResponse));
+        } catch (RejectedExecutionException e) {
+            logger.warn("答案验证队列已满，拒绝本次验证");
+            throw new HashUnavailableException("答案验证队列已满", e);
+        }
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            logger.warn("答案验证超时");
+            throw new HashUnavailableException("答案验证超时", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HashUnavailableException("答案验证被中断", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    // 在当前线程比较答案，兼容旧版本的明文答案
+    public boolean matches(SecretQuestionSecretData secretData, String challengeResponse) {
+        String expected = secretData.getAnswer();
+        if (expected == null) return false;
+        if (!secretData.isHashed()) {
+            return MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), challengeResponse.getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] salt = Base64.getDecoder().decode(secretData.getSalt());
+        String actual = hash(challengeResponse, salt, secretData.getIterations());
+        return MessageDigest.isEqual(expected.getBytes(StandardCharsets.US_ASCII), actual.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    // 哈希线程池过载，本次验证没有得出结果
+    public static class HashUnavailableException extends RuntimeException {
+        public HashUnavailableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private byte[] newSalt() {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        return salt;
+    }
+
+    private String hash(String answer, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(answer.toCharArray(), salt, iterations, KEY_LENGTH);
+        try {
+            byte[] key = SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+            return Base64.getEncoder().encodeToString(key);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
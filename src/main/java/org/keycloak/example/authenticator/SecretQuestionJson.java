@@ -0,0 +1,46 @@
+package org.keycloak.example.authenticator;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.keycloak.example.authenticator.dto.SecretQuestionChallenge;
+import org.keycloak.example.authenticator.dto.SecretQuestionCredentialData;
+import org.keycloak.example.authenticator.dto.SecretQuestionImportRecord;
+import org.keycloak.example.authenticator.dto.SecretQuestionSecretData;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+
+// 各DTO预先构建的ObjectReader/ObjectWriter，基于Keycloak的JsonSerialization.mapper，配置与之相同
+// 构建时即解析好根类型的序列化器/反序列化器，之后线程安全、可重复使用，第一次请求不再承担Jackson的构建开销
+// 类加载时构建，Factory的init()中主动加载
+final class SecretQuestionJson {
+    static final ObjectReader CREDENTIAL_DATA_READER = JsonSerialization.mapper.readerFor(SecretQuestionCredentialData.class);
+    static final ObjectWriter CREDENTIAL_DATA_WRITER = JsonSerialization.mapper.writerFor(SecretQuestionCredentialData.class);
+    static final ObjectReader SECRET_DATA_READER = JsonSerialization.mapper.readerFor(SecretQuestionSecretData.class);
+    static final ObjectWriter SECRET_DATA_WRITER = JsonSerialization.mapper.writerFor(SecretQuestionSecretData.class);
+    static final ObjectWriter CHALLENGE_WRITER = JsonSerialization.mapper.writerFor(SecretQuestionChallenge.class);
+    static final ObjectReader IMPORT_RECORD_READER = JsonSerialization.mapper.readerFor(SecretQuestionImportRecord.class);
+
+    private SecretQuestionJson() {
+    }
+
+    // 触发类加载，使上面的实例在启动时而不是第一次请求时构建
+    static void prebuild() {
+    }
+
+    static <T> T read(ObjectReader reader, String value) {
+        try {
+            return reader.readValue(value);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String write(ObjectWriter writer, Object value) {
+        try {
+            return writer.writeValueAsString(value);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
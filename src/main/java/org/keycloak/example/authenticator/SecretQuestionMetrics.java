@@ -0,0 +1,134 @@
+package org.keycloak.example.authenticator;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.keycloak.models.RealmModel;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// 热路径指标，注册到Micrometer全局注册表，Keycloak开启metrics后会出现在已有的/metrics端点
+// 每个 操作 + 领域 + 结果 对应一个Timer，Timer的计数即为成功/失败/锁定等结果的次数；百分位直方图可选
+// 未开启metrics时start()直接返回0，record()立即返回，不读时钟也不分配对象
+public final class SecretQuestionMetrics {
+    public static final String METRIC_NAME = "keycloak.secret.question";
+
+    // 操作名称
+    public static final String AUTHENTICATE = "authenticate";
+    public static final String ACTION = "action";
+    public static final String VALIDATE_ANSWER = "validate_answer";
+    public static final String IS_VALID = "is_valid";
+    public static final String DECODE = "decode";
+    public static final String SET_COOKIE = "set_cookie";
+    public static final String REGISTER_DEVICE = "register_device";
+    public static final String PROCESS_ACTION = "process_action";
+    public static final String MIGRATE = "migrate";
+    public static final String STATUS_PAGE = "status_page";
+
+    // 结果
+    public static final String SUCCESS = "success";
+    public static final String FAILURE = "failure";
+    public static final String LOCKOUT = "lockout";
+    public static final String CHALLENGE = "challenge";
+    public static final String SKIPPED = "skipped";
+    public static final String EXISTING = "existing";
+    // 哈希线程池过载，未能验证答案
+    public static final String UNAVAILABLE = "unavailable";
+
+    // Timer按下标存放在每个领域的数组中，下标 = 操作下标 * 结果数 + 结果下标
+    private static final String[] OPERATIONS = {AUTHENTICATE, ACTION, VALIDATE_ANSWER, IS_VALID, DECODE, SET_COOKIE, REGISTER_DEVICE, PROCESS_ACTION, MIGRATE, STATUS_PAGE};
+    private static final String[] OUTCOMES = {SUCCESS, FAILURE, LOCKOUT, CHALLENGE, SKIPPED, EXISTING, UNAVAILABLE};
+
+    private static final String UNKNOWN_REALM = "unknown";
+
+    private static volatile boolean enabled = false;
+    private static volatile boolean percentileHistogram = false;
+    // 领域Id -> 该领域的Timer；领域被删除时移除并从注册表注销
+    private static final ConcurrentHashMap<String, RealmTimers> byRealm = new ConcurrentHashMap<>();
+
+    private SecretQuestionMetrics() {
+    }
+
+    // 在Factory的postInit()中调用，只有配置允许且全局注册表中确实有实际的注册表（Keycloak开启了metrics）时才启用
+    // 百分位直方图每个Timer要多出几十个桶，乘以领域数后序列很多，所以默认关闭，由SPI配置metricsPercentileHistogram开启
+    public static void setEnabled(boolean enable, boolean histogram) {
+        percentileHistogram = histogram;
+        enabled = enable && !Metrics.globalRegistry.getRegistries().isEmpty();
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    // 命中时只做一次Map查找和数组读取，不拼接字符串也不分配对象
+    public static void record(String operation, RealmModel realm, String outcome, long start) {
+        if (!enabled || start == 0L) return;
+        long elapsed = System.nanoTime() - start;
+        String realmId = realm == null ? UNKNOWN_REALM : realm.getId();
+        RealmTimers realmTimers = byRealm.get(realmId);
+        if (realmTimers == null) {
+            RealmTimers created = new RealmTimers(realm == null ? UNKNOWN_REALM : realm.getName());
+            realmTimers = byRealm.putIfAbsent(realmId, created);
+            if (realmTimers == null) realmTimers = created;
+        }
+        realmTimers.timer(operation, outcome).record(elapsed, TimeUnit.NANOSECONDS);
+    }
+
+    // 领域被删除时调用
+    public static void removeRealm(String realmId) {
+        if (realmId == null) return;
+        RealmTimers removed = byRealm.remove(realmId);
+        if (removed == null) return;
+        for (int i = 0; i < removed.timers.length(); i++) {
+            Timer timer = removed.timers.get(i);
+            if (timer != null) Metrics.globalRegistry.remove(timer);
+        }
+    }
+
+    private static int indexOf(String[] values, String value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value || values[i].equals(value)) return i;
+        }
+        return -1;
+    }
+
+    private static Timer register(String operation, String realmName, String outcome) {
+        Timer.Builder builder = Timer.builder(METRIC_NAME)
+                .description("Secret question authenticator latency by operation and outcome")
+                .tag("operation", operation)
+                .tag("realm", realmName)
+                .tag("outcome", outcome);
+        if (percentileHistogram) builder.publishPercentileHistogram();
+        return builder.register(Metrics.globalRegistry);
+    }
+
+    // 一个领域的全部Timer，第一次用到某个 操作 + 结果 时才注册
+    private static final class RealmTimers {
+        private final String realmName;
+        private final AtomicReferenceArray<Timer> timers = new AtomicReferenceArray<>(OPERATIONS.length * OUTCOMES.length);
+
+        private RealmTimers(String realmName) {
+            this.realmName = realmName;
+        }
+
+        private Timer timer(String operation, String outcome) {
+            int op = indexOf(OPERATIONS, operation);
+            int out = indexOf(OUTCOMES, outcome);
+            // 不在预定义列表中的组合不缓存，直接交给注册表（注册表对相同的名称和标签返回同一个Timer）
+            if (op < 0 || out < 0) return register(operation, realmName, outcome);
+            int index = op * OUTCOMES.length + out;
+            Timer timer = timers.get(index);
+            if (timer == null) {
+                // 并发注册时注册表返回同一个Timer，重复写入同一个值无妨
+                timer = register(operation, realmName, outcome);
+                timers.set(index, timer);
+            }
+            return timer;
+        }
+    }
+}
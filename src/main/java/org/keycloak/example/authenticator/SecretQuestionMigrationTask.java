@@ -0,0 +1,183 @@
+package org.keycloak.example.authenticator;
+
+import org.jboss.logging.Logger;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.credential.CredentialProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.ScheduledTask;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+// 后台迁移任务：答案存储格式变化后，不等用户登录，主动把存储区中的旧格式答案改写为当前格式
+// 由TimerProvider定时触发，集群中同一时刻只有一个节点执行；每次执行最多运行maxRunMillis，游标保存在领域属性中，下次从游标继续
+// 每页用户拆成若干批次交给有界线程池，每个批次一个事务，并按opsPerSecond限制对存储区的读写速度
+public class SecretQuestionMigrationTask implements ScheduledTask {
+    private static final Logger logger = Logger.getLogger(SecretQuestionMigrationTask.class);
+
+    public static final String TASK_NAME = "secret-question-migration";
+    // 领域属性：已处理到的最后一个用户Id；已完成迁移的格式版本，与当前版本相同则跳过该领域
+    static final String CURSOR_ATTRIBUTE = "secretQuestionMigrationUserCursor";
+    // 旧版本按偏移分页时的游标，含义不同，不再读取，迁移完成时清除
+    static final String LEGACY_CURSOR_ATTRIBUTE = "secretQuestionMigrationCursor";
+    static final String VERSION_ATTRIBUTE = "secretQuestionMigrationVersion";
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final ExecutorService workers;
+    private final int threads;
+    private final int batchSize;
+    private final long maxRunMillis;
+    private final SecretQuestionPacer pacer;
+
+    private final LongAdder scanned = new LongAdder();
+    private final LongAdder migrated = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public SecretQuestionMigrationTask(KeycloakSessionFactory sessionFactory, ExecutorService workers, int threads, int batchSize, int opsPerSecond, long maxRunMillis) {
+        this.sessionFactory = sessionFactory;
+        this.workers = workers;
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.maxRunMillis = maxRunMillis;
+        this.pacer = new SecretQuestionPacer(opsPerSecond);
+    }
+
+    @Override
+    public String getTaskName() {
+        return TASK_NAME;
+    }
+
+    // 外层事务只用于列出领域；游标和完成标记各自在短事务中写入，不会在整个执行期间持有领域的行锁
+    @Override
+    public void run(KeycloakSession session) {
+        long deadline = System.currentTimeMillis() + maxRunMillis;
+        List<String> realmIds = session.realms().getRealmsStream()
+                .filter(realm -> !SecretQuestionCredentialCodec.SECRET_FORMAT_V2.equals(realm.getAttribute(VERSION_ATTRIBUTE)))
+                .map(RealmModel::getId)
+                .collect(Collectors.toList());
+        for (String realmId : realmIds) {
+            if (System.currentTimeMillis() >= deadline) return;
+            migrateRealm(realmId, deadline);
+        }
+    }
+
+    // 按用户Id对持有密保问题凭据的用户做键集分页，一页为threads个批次；每页的全部批次都提交后才在短事务中推进游标，
+    // 有批次失败时本次执行到此为止，游标和完成标记都不变，下次执行时从这一页重试；已是当前格式的凭据会被跳过
+    private void migrateRealm(String realmId, long deadline) {
+        int pageSize = batchSize * threads;
+        String cursor = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            return realm == null ? null : realm.getAttribute(CURSOR_ATTRIBUTE);
+        });
+        while (System.currentTimeMillis() < deadline) {
+            pacer.acquire(1);
+            String after = cursor;
+            List<String> userIds = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                if (realm == null) return null;
+                session.getContext().setRealm(realm);
+                SecretQuestionCredentialProvider provider = (SecretQuestionCredentialProvider) session.getProvider(CredentialProvider.class, SecretQuestionCredentialProviderFactory.PROVIDER_ID);
+                return provider.getCredentialHolderPage(realm, after, pageSize);
+            });
+            if (userIds == null) return;
+            if (userIds.isEmpty()) {
+                updateRealm(realmId, realm -> {
+                    realm.removeAttribute(CURSOR_ATTRIBUTE);
+                    realm.removeAttribute(LEGACY_CURSOR_ATTRIBUTE);
+                    realm.setAttribute(VERSION_ATTRIBUTE, SecretQuestionCredentialCodec.SECRET_FORMAT_V2);
+                    logger.infof("领域%s的密保问题答案已全部迁移为当前格式", realm.getName());
+                });
+                return;
+            }
+            if (!migratePage(realmId, userIds)) return;
+            cursor = userIds.get(userIds.size() - 1);
+            String next = cursor;
+            updateRealm(realmId, realm -> realm.setAttribute(CURSOR_ATTRIBUTE, next));
+        }
+    }
+
+    private void updateRealm(String realmId, Consumer<RealmModel> update) {
+        SecretQuestionTransactions.updateRealm(sessionFactory, realmId, update);
+    }
+
+    // 把一页用户交给线程池并等待全部批次完成；有批次失败或被中断时返回false，不推进游标，下次执行时重试这一页
+    private boolean migratePage(String realmId, List<String> userIds) {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int from = 0; from < userIds.size(); from += batchSize) {
+            List<String> batch = userIds.subList(from, Math.min(from + batchSize, userIds.size()));
+            futures.add(workers.submit(() -> migrateBatch(realmId, batch)));
+        }
+        boolean completed = true;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                logger.warnf(e.getCause(), "领域%s的密保问题迁移批次失败", realmId);
+                completed = false;
+            }
+        }
+        return completed;
+    }
+
+    // 一个批次一个事务，每个用户读取一次凭据，每次改写计为一次存储区操作
+    // 任何一个凭据改写失败都让异常传出：整个批次回滚（失败的JPA操作可能已把事务标记为只能回滚，其他用户的改写也不会生效），
+    // migratePage()据此不推进游标，下次执行时重试这一页；迁移数在事务提交后才计入
+    private void migrateBatch(String realmId, List<String> userIds) {
+        int upgraded = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            if (realm == null) return 0;
+            session.getContext().setRealm(realm);
+            SecretQuestionCredentialProvider provider = (SecretQuestionCredentialProvider) session.getProvider(CredentialProvider.class, SecretQuestionCredentialProviderFactory.PROVIDER_ID);
+            int count = 0;
+            for (String userId : userIds) {
+                pacer.acquire(1);
+                UserModel user = session.users().getUserById(realm, userId);
+                if (user == null) continue;
+                List<CredentialModel> credentials = user.credentialManager().getStoredCredentialsByTypeStream(SecretQuestionCredentialModel.TYPE)
+                        .collect(Collectors.toList());
+                for (CredentialModel cm : credentials) {
+                    scanned.increment();
+                    if (SecretQuestionCredentialCodec.isCurrentSecretFormat(cm.getSecretData())) continue;
+                    pacer.acquire(1);
+                    long start = SecretQuestionMetrics.start();
+                    try {
+                        provider.upgradeSecretFormat(user, cm);
+                    } catch (RuntimeException e) {
+                        failed.increment();
+                        SecretQuestionMetrics.record(SecretQuestionMetrics.MIGRATE, realm, SecretQuestionMetrics.FAILURE, start);
+                        throw new IllegalStateException("凭据" + cm.getId() + "迁移失败", e);
+                    }
+                    count++;
+                    SecretQuestionMetrics.record(SecretQuestionMetrics.MIGRATE, realm, SecretQuestionMetrics.SUCCESS, start);
+                }
+            }
+            return count;
+        });
+        migrated.add(upgraded);
+    }
+
+    public long getScanned() {
+        return scanned.sum();
+    }
+
+    public long getMigrated() {
+        return migrated.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+}
@@ -0,0 +1,32 @@
+package org.keycloak.example.authenticator;
+
+import java.util.concurrent.TimeUnit;
+
+// 后台任务用的简单速率限制，可在多个工作线程之间共享：每次操作预约下一个时间片，时间未到则睡眠等待
+// opsPerSecond不大于0表示不限制
+final class SecretQuestionPacer {
+    private final long intervalNanos;
+    private long next;
+
+    SecretQuestionPacer(int opsPerSecond) {
+        this.intervalNanos = opsPerSecond <= 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / opsPerSecond;
+    }
+
+    void acquire(int ops) {
+        if (intervalNanos == 0) return;
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (next - now < 0) next = now;
+            wait = next - now;
+            next += intervalNanos * ops;
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
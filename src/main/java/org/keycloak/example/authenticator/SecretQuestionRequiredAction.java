@@ -1,18 +1,35 @@
 package org.keycloak.example.authenticator;
 
+import jakarta.ws.rs.core.MultivaluedMap;
 import jakarta.ws.rs.core.Response;
 import org.jboss.logging.Logger;
 import org.keycloak.authentication.CredentialRegistrator;
 import org.keycloak.authentication.RequiredActionContext;
 import org.keycloak.authentication.RequiredActionProvider;
+import org.keycloak.credential.CredentialModel;
 import org.keycloak.credential.CredentialProvider;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.models.UserModel;
 import org.keycloak.sessions.AuthenticationSessionModel;
 
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 public class SecretQuestionRequiredAction implements RequiredActionProvider, CredentialRegistrator {
-    private Logger logger = Logger.getLogger(SecretQuestionRequiredAction.class);
+    // 必需操作是所有会话共享的单例，只保存无状态或线程安全的字段
+    private static final Logger logger = Logger.getLogger(SecretQuestionRequiredAction.class);
     // 创建ID，类似于ProviderFactory，可以让别人找到它
     public static final String PROVIDER_ID = "secret_question_config";
+    // 正在创建凭据、事务尚未结束的用户（领域Id + 用户Id）在集群共享的SingleUseObjectProvider中的标记，
+    // 用于识别落在任意节点上的并发重复提交；事务提交或回滚后清除，生存时间只是节点在请求中途退出时的兜底
+    private static final String ENROLL_PREFIX = "secret-question.enroll:";
+    private static final long ENROLL_LIFESPAN_SECONDS = 30;
+    // 设置页面上预先填好的问题，用户可以修改问题文本，至少回答其中一个
+    public static final List<String> DEFAULT_QUESTIONS = List.of("你姓什么？", "你的出生地是哪里？", "你的第一所学校叫什么？");
     @Override
     public void evaluateTriggers(RequiredActionContext requiredActionContext) {
 
@@ -21,20 +38,82 @@ public class SecretQuestionRequiredAction implements RequiredActionProvider, Cre
     // 对必需操作的初始调用，即打开一个添加信息的页面
     @Override
     public void requiredActionChallenge(RequiredActionContext requiredActionContext) {
-        logger.info("打开添加信息页面...");
-        Response response = requiredActionContext.form().createForm("secret-question-config.ftl");
+        logger.debug("打开添加信息页面...");
+        Response response = requiredActionContext.form().setAttribute("secretQuestions", DEFAULT_QUESTIONS).createForm("secret-question-config.ftl");
         requiredActionContext.challenge(response);
     }
 
     // 处理添加信息页面的表单输入，这些信息都会被路由到此方法
+    // 每个填写了答案的问题创建一个凭据，按页面上的顺序排列优先级
+    // 重复提交（双击、重放）不会重复创建：已经设置过的问题（按问题文本）跳过，只创建新的问题；
+    // 同一用户正在处理的提交（可能在其他节点上）尚未结束时，后到的提交请用户稍后重试，不报告成功
     @Override
     public void processAction(RequiredActionContext requiredActionContext) {
-        logger.info("处理添加信息的表单数据...");
-        String answer = requiredActionContext.getHttpRequest().getDecodedFormParameters().getFirst("secret_answer");
+        logger.debug("处理添加信息的表单数据...");
+        long start = SecretQuestionMetrics.start();
+        Map<String, String> questions = submittedQuestions(requiredActionContext.getHttpRequest().getDecodedFormParameters());
+        if (questions.isEmpty()) {
+            retry(requiredActionContext, "请至少回答一个问题");
+            SecretQuestionMetrics.record(SecretQuestionMetrics.PROCESS_ACTION, requiredActionContext.getRealm(), SecretQuestionMetrics.FAILURE, start);
+            return;
+        }
         // 通过Session找到Provider（secret-question是ProviderFactory的ID），目的是为了将输入存储，而存储的方法就写在Provider中
-        SecretQuestionCredentialProvider sqcp = (SecretQuestionCredentialProvider) requiredActionContext.getSession().getProvider(CredentialProvider.class, "secret-question");
-        sqcp.createCredential(requiredActionContext.getRealm(), requiredActionContext.getUser(), SecretQuestionCredentialModel.createSecretQuestion("你姓什么？", answer));
+        SecretQuestionCredentialProvider sqcp = (SecretQuestionCredentialProvider) requiredActionContext.getSession().getProvider(CredentialProvider.class, SecretQuestionCredentialProviderFactory.PROVIDER_ID);
+        KeycloakSession session = requiredActionContext.getSession();
+        UserModel user = requiredActionContext.getUser();
+        SingleUseObjectProvider singleUseObjects = session.singleUseObjects();
+        String key = ENROLL_PREFIX + requiredActionContext.getRealm().getId() + ':' + user.getId();
+        if (!singleUseObjects.putIfAbsent(key, ENROLL_LIFESPAN_SECONDS)) {
+            logger.debug("同一用户的上一次提交尚未完成");
+            retry(requiredActionContext, "正在保存上一次提交，请稍后重试");
+            SecretQuestionMetrics.record(SecretQuestionMetrics.PROCESS_ACTION, requiredActionContext.getRealm(), SecretQuestionMetrics.FAILURE, start);
+            return;
+        }
+        boolean enlisted = false;
+        try {
+            Set<String> existing = new HashSet<>();
+            for (CredentialModel cm : SecretQuestionCredentialSnapshot.of(session, user).getCredentials()) {
+                existing.add(sqcp.getCredentialFromModel(cm).getSecretQuestionCredentialData().getQuestion());
+            }
+            questions.keySet().removeAll(existing);
+            if (questions.isEmpty()) {
+                logger.debug("提交的问题都已设置，跳过重复提交");
+                requiredActionContext.success();
+                SecretQuestionMetrics.record(SecretQuestionMetrics.PROCESS_ACTION, requiredActionContext.getRealm(), SecretQuestionMetrics.EXISTING, start);
+                return;
+            }
+            questions.forEach((question, answer) ->
+                    sqcp.createCredential(requiredActionContext.getRealm(), user, SecretQuestionCredentialModel.createSecretQuestion(question, answer)));
+            // 新凭据在事务提交后才对其他请求可见，所以事务结束（包括回滚）后才移除标记，提交失败时用户可以立即重试
+            SecretQuestionTransactions.afterCompletion(session, () -> singleUseObjects.remove(key));
+            enlisted = true;
+        } finally {
+            // 没有创建凭据或创建时抛出异常，立即移除
+            if (!enlisted) singleUseObjects.remove(key);
+        }
         requiredActionContext.success();
+        SecretQuestionMetrics.record(SecretQuestionMetrics.PROCESS_ACTION, requiredActionContext.getRealm(), SecretQuestionMetrics.SUCCESS, start);
+    }
+
+    private void retry(RequiredActionContext requiredActionContext, String error) {
+        Response response = requiredActionContext.form().setAttribute("secretQuestions", DEFAULT_QUESTIONS).setError(error).createForm("secret-question-config.ftl");
+        requiredActionContext.challenge(response);
+    }
+
+    // 表单中的问题和答案按位置一一对应，忽略没有答案的问题，重复的问题只保留第一个
+    // 旧版本的页面只提交secret_answer，对应第一个默认问题
+    protected Map<String, String> submittedQuestions(MultivaluedMap<String, String> formData) {
+        List<String> questions = formData.get("secret_question");
+        List<String> answers = formData.get("secret_answer");
+        Map<String, String> result = new LinkedHashMap<>();
+        if (answers == null) return result;
+        for (int i = 0; i < answers.size(); i++) {
+            String question = questions == null ? (i == 0 ? DEFAULT_QUESTIONS.get(0) : null) : (i < questions.size() ? questions.get(i) : null);
+            String answer = answers.get(i);
+            if (question == null || question.isBlank() || answer == null || answer.isBlank()) continue;
+            result.putIfAbsent(question.trim(), answer);
+        }
+        return result;
     }
 
     @Override
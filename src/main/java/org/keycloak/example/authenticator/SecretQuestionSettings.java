@@ -0,0 +1,160 @@
+package org.keycloak.example.authenticator;
+
+import org.jboss.logging.Logger;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.RealmModel;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+// 认证器配置的不可变快照：配置项在第一次使用时解析和校验一次，之后每个请求直接读取字段，不再查表和解析字符串
+// 按认证器配置Id缓存。Keycloak没有认证器配置修改的ProviderEvent，但修改配置后领域缓存会重新加载出新的配置Map，
+// 所以命中时先比较Map引用，引用不同再比较内容，内容变化则重新解析；领域被删除或重新载入缓存时由Factory注册的监听器清除对应条目
+public final class SecretQuestionSettings {
+    private static final Logger logger = Logger.getLogger(SecretQuestionSettings.class);
+
+    // 未配置认证器时使用的默认值
+    static final SecretQuestionSettings DEFAULT = new SecretQuestionSettings(null, Map.of());
+
+    private static final ConcurrentHashMap<String, SecretQuestionSettings> byConfigId = new ConcurrentHashMap<>();
+    // 领域Id -> Cookie路径，只在领域名称或部署的根路径变化时重新构建
+    private static final ConcurrentHashMap<String, CookiePath> cookiePaths = new ConcurrentHashMap<>();
+
+    private final String realmId;
+    // 解析时的配置Map引用（用于快速比较）和内容副本（引用不同时比较内容）
+    private final Map<String, String> sourceRef;
+    private final Map<String, String> source;
+    private final int cookieMaxAge;
+    private final int attemptLimitMax;
+    private final int attemptLimitUserMax;
+    private final long attemptLimitWindowMillis;
+    private final boolean challengeJson;
+    private final long deviceTrustTtlMillis;
+
+    private SecretQuestionSettings(String realmId, Map<String, String> config) {
+        this.realmId = realmId;
+        this.sourceRef = config;
+        this.source = new HashMap<>(config);
+        this.cookieMaxAge = positive(config, SecretQuestionAuthenticatorFactory.COOKIE_MAX_AGE, SecretQuestionAuthenticatorFactory.DEFAULT_COOKIE_MAX_AGE);
+        this.attemptLimitMax = nonNegative(config, SecretQuestionAuthenticatorFactory.ATTEMPT_LIMIT_MAX, SecretQuestionAuthenticatorFactory.DEFAULT_ATTEMPT_LIMIT_MAX);
+        this.attemptLimitUserMax = nonNegative(config, SecretQuestionAuthenticatorFactory.ATTEMPT_LIMIT_USER_MAX, SecretQuestionAuthenticatorFactory.DEFAULT_ATTEMPT_LIMIT_USER_MAX);
+        this.attemptLimitWindowMillis = positive(config, SecretQuestionAuthenticatorFactory.ATTEMPT_LIMIT_WINDOW, SecretQuestionAuthenticatorFactory.DEFAULT_ATTEMPT_LIMIT_WINDOW) * 1000L;
+        this.challengeJson = Boolean.parseBoolean(trim(config.get(SecretQuestionAuthenticatorFactory.CHALLENGE_JSON)));
+        this.deviceTrustTtlMillis = nonNegative(config, SecretQuestionAuthenticatorFactory.DEVICE_TRUST_TTL, 0) * 1000L;
+    }
+
+    // 取得当前执行的认证器配置对应的快照
+    public static SecretQuestionSettings of(AuthenticationFlowContext context) {
+        return of(context.getRealm(), context.getAuthenticatorConfig());
+    }
+
+    public static SecretQuestionSettings of(RealmModel realm, AuthenticatorConfigModel config) {
+        if (config == null || config.getConfig() == null) return DEFAULT;
+        Map<String, String> map = config.getConfig();
+        String id = config.getId();
+        if (id == null) return new SecretQuestionSettings(null, map);
+        SecretQuestionSettings cached = byConfigId.get(id);
+        if (cached != null && (cached.sourceRef == map || cached.source.equals(map))) return cached;
+        SecretQuestionSettings settings = new SecretQuestionSettings(realm == null ? null : realm.getId(), map);
+        byConfigId.put(id, settings);
+        return settings;
+    }
+
+    // 领域被删除或重新载入缓存时调用，清除该领域的全部快照
+    public static void invalidateRealm(String realmId) {
+        if (realmId == null) return;
+        byConfigId.values().removeIf(settings -> realmId.equals(settings.realmId));
+        cookiePaths.remove(realmId);
+    }
+
+    public static void invalidateAll() {
+        byConfigId.clear();
+        cookiePaths.clear();
+    }
+
+    // Cookie路径为领域根路径，与Keycloak自身的领域Cookie一致
+    public static String cookiePath(AuthenticationFlowContext context) {
+        RealmModel realm = context.getRealm();
+        URI baseUri = context.getUriInfo().getBaseUri();
+        String basePath = baseUri == null ? null : baseUri.getRawPath();
+        CookiePath cached = cookiePaths.get(realm.getId());
+        if (cached != null && cached.matches(basePath, realm.getName())) return cached.path;
+        String path = context.getUriInfo().getBaseUriBuilder().path("realms").path(realm.getName()).build().getRawPath();
+        cookiePaths.put(realm.getId(), new CookiePath(basePath, realm.getName(), path));
+        return path;
+    }
+
+    public int getCookieMaxAge() {
+        return cookieMaxAge;
+    }
+
+    public int getAttemptLimitMax() {
+        return attemptLimitMax;
+    }
+
+    public int getAttemptLimitUserMax() {
+        return attemptLimitUserMax;
+    }
+
+    public long getAttemptLimitWindowMillis() {
+        return attemptLimitWindowMillis;
+    }
+
+    public boolean isChallengeJson() {
+        return challengeJson;
+    }
+
+    public long getDeviceTrustTtlMillis() {
+        return deviceTrustTtlMillis;
+    }
+
+    public boolean isDeviceTrustEnabled() {
+        return deviceTrustTtlMillis > 0;
+    }
+
+    // 读取整数配置，未配置、格式错误或超出范围时使用默认值
+    private static int integer(Map<String, String> config, String name, int min, int defaultValue) {
+        String value = trim(config.get(name));
+        if (value == null || value.isEmpty()) return defaultValue;
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed >= min) return parsed;
+        } catch (NumberFormatException e) {
+            // 与超出范围一样使用默认值
+        }
+        logger.warnf("认证器配置项%s的值%s无效，使用默认值%d", name, value, defaultValue);
+        return defaultValue;
+    }
+
+    private static int positive(Map<String, String> config, String name, int defaultValue) {
+        return integer(config, name, 1, defaultValue);
+    }
+
+    private static int nonNegative(Map<String, String> config, String name, int defaultValue) {
+        return integer(config, name, 0, defaultValue);
+    }
+
+    private static String trim(String value) {
+        return value == null ? null : value.trim();
+    }
+
+    private static final class CookiePath {
+        private final String basePath;
+        private final String realmName;
+        private final String path;
+
+        private CookiePath(String basePath, String realmName, String path) {
+            this.basePath = basePath;
+            this.realmName = realmName;
+            this.path = path;
+        }
+
+        private boolean matches(String basePath, String realmName) {
+            return Objects.equals(this.basePath, basePath) && this.realmName.equals(realmName);
+        }
+    }
+}
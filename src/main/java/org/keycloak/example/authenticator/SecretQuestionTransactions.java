@@ -0,0 +1,39 @@
+package org.keycloak.example.authenticator;
+
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.function.Consumer;
+
+// 事务相关的工具方法
+// 请求事务结束后的回调：JPA的写入在请求结束时才提交，只有在事务提交或回滚之后才能释放"正在创建"之类的标记
+final class SecretQuestionTransactions {
+    private SecretQuestionTransactions() {
+    }
+
+    // 事务提交或回滚后都执行action
+    static void afterCompletion(KeycloakSession session, Runnable action) {
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                action.run();
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                action.run();
+            }
+        });
+    }
+
+    // 在独立的短事务中修改领域（如后台任务的游标），不借用后台任务外层的长事务，提交后立即生效，也不会长时间持有领域的行锁
+    static void updateRealm(KeycloakSessionFactory sessionFactory, String realmId, Consumer<RealmModel> update) {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            if (realm != null) update.accept(realm);
+        });
+    }
+}
@@ -0,0 +1,141 @@
+package org.keycloak.example.authenticator;
+
+import org.jboss.logging.Logger;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.example.authenticator.dto.SecretQuestionChallenge;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.theme.Theme;
+import org.keycloak.theme.freemarker.FreeMarkerProvider;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+
+// 启动预热：节点启动后的前几次登录很慢，Jackson、FreeMarker模板和JIT都还是冷的
+// 在postInit()中同步执行，完成后节点才就绪接收流量：先编译默认登录主题中的secret-question.ftl，
+// 再重复执行合成的登录路径（存储格式编码 -> 解码 -> 答案验证 -> JSON挑战序列化），记录每一次的耗时
+// "快速登录"指耗时不超过稳定值（最后四分之一次数的中位数）1.25倍的一次，报告第一次快速登录距预热开始和JVM启动的时间
+public class SecretQuestionWarmup {
+    private static final Logger logger = Logger.getLogger(SecretQuestionWarmup.class);
+    private static final String TEMPLATE = "secret-question.ftl";
+
+    private final int iterations;
+
+    private long firstLoginMicros;
+    private long steadyLoginMicros;
+    private int fastAfterIterations = -1;
+    private long fastAfterMillis = -1;
+    private long readyAtUptimeMillis = -1;
+    private long totalMillis;
+
+    public SecretQuestionWarmup(int iterations) {
+        this.iterations = iterations;
+    }
+
+    public void run(KeycloakSessionFactory sessionFactory) {
+        long started = System.nanoTime();
+        warmTemplate(sessionFactory);
+        long[] micros = new long[iterations];
+        long[] finishedAt = new long[iterations];
+        // 与真实凭据相同的哈希参数，验证走同一个哈希线程池
+        SecretQuestionCredentialModel enrolled = SecretQuestionCredentialModel.createSecretQuestion("warm-up", "warm-up-answer");
+        for (int i = 0; i < iterations; i++) {
+            long begin = System.nanoTime();
+            try {
+                if (!syntheticLogin(enrolled)) {
+                    logger.warn("预热中合成登录的答案验证失败，停止预热");
+                    break;
+                }
+            } catch (SecretQuestionHasher.HashUnavailableException e) {
+                logger.warnf("预热中答案验证暂时不可用（%s），停止预热", e.getMessage());
+                break;
+            }
+            long end = System.nanoTime();
+            micros[i] = (end - begin) / 1000;
+            finishedAt[i] = end;
+        }
+        totalMillis = (System.nanoTime() - started) / 1_000_000;
+        report(started, micros, finishedAt);
+    }
+
+    // 以存储区中的字符串形式重新构建凭据并解码，与登录时从数据库读出的凭据走同一条路径
+    private boolean syntheticLogin(SecretQuestionCredentialModel enrolled) {
+        CredentialModel stored = new CredentialModel();
+        stored.setId(enrolled.getId());
+        stored.setType(SecretQuestionCredentialModel.TYPE);
+        stored.setCredentialData(SecretQuestionCredentialCodec.encodeCredential(enrolled.getSecretQuestionCredentialData()));
+        stored.setSecretData(SecretQuestionCredentialCodec.encodeSecret(enrolled.getSecretQuestionSecretData()));
+        stored.setCreatedDate(enrolled.getCreatedDate());
+        SecretQuestionCredentialModel decoded = SecretQuestionCredentialModel.createFromCredentialModel(stored);
+        String question = decoded.getSecretQuestionCredentialData().getQuestion();
+        boolean valid = SecretQuestionHasher.getInstance().verify(decoded.getSecretQuestionSecretData(), "warm-up-answer");
+        SecretQuestionJson.write(SecretQuestionJson.CHALLENGE_WRITER, new SecretQuestionChallenge(question, stored.getId(), "warm-up", valid ? null : "invalid_answer"));
+        return valid;
+    }
+
+    // 模板在第一次渲染时编译并缓存在FreeMarkerProvider中；这里没有真实的请求上下文，渲染本身会失败，但编译结果已经缓存
+    private void warmTemplate(KeycloakSessionFactory sessionFactory) {
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                try {
+                    Theme theme = session.theme().getTheme(Theme.Type.LOGIN);
+                    session.getProvider(FreeMarkerProvider.class).processTemplate(Map.of(), TEMPLATE, theme);
+                } catch (Exception e) {
+                    logger.debugf("预热模板%s：%s", TEMPLATE, e.getMessage());
+                }
+            });
+        } catch (RuntimeException e) {
+            logger.debugf(e, "无法预热模板%s", TEMPLATE);
+        }
+    }
+
+    private void report(long started, long[] micros, long[] finishedAt) {
+        int completed = 0;
+        while (completed < micros.length && finishedAt[completed] != 0) completed++;
+        if (completed == 0) return;
+        firstLoginMicros = micros[0];
+        long[] tail = Arrays.copyOfRange(micros, completed - Math.max(1, completed / 4), completed);
+        Arrays.sort(tail);
+        steadyLoginMicros = tail[tail.length / 2];
+        for (int i = 0; i < completed; i++) {
+            if (micros[i] * 4 <= steadyLoginMicros * 5) {
+                fastAfterIterations = i + 1;
+                fastAfterMillis = (finishedAt[i] - started) / 1_000_000;
+                long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+                readyAtUptimeMillis = uptime - (System.nanoTime() - finishedAt[i]) / 1_000_000;
+                break;
+            }
+        }
+        logger.infof("密保问题预热完成：%d次合成登录耗时%dms，第一次%.1fms，稳定后%.1fms，第%d次起达到稳定（预热开始后%dms，JVM启动后%dms）",
+                completed, totalMillis, firstLoginMicros / 1000.0, steadyLoginMicros / 1000.0, fastAfterIterations, fastAfterMillis, readyAtUptimeMillis);
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public long getFirstLoginMicros() {
+        return firstLoginMicros;
+    }
+
+    public long getSteadyLoginMicros() {
+        return steadyLoginMicros;
+    }
+
+    public int getFastAfterIterations() {
+        return fastAfterIterations;
+    }
+
+    public long getFastAfterMillis() {
+        return fastAfterMillis;
+    }
+
+    public long getReadyAtUptimeMillis() {
+        return readyAtUptimeMillis;
+    }
+
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+}
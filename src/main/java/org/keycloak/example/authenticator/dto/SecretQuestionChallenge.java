@@ -0,0 +1,21 @@
+package org.keycloak.example.authenticator.dto;
+// JSON挑战模式下返回给API和原生客户端的挑战内容，代替secret-question.ftl页面
+// action为提交答案的地址，客户端以表单字段secret_answer和credentialId提交；error为空表示首次挑战
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Getter;
+
+@Getter
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class SecretQuestionChallenge {
+    private final String question;
+    private final String credentialId;
+    private final String action;
+    private final String error;
+
+    public SecretQuestionChallenge(String question, String credentialId, String action, String error) {
+        this.question = question;
+        this.credentialId = credentialId;
+        this.action = action;
+        this.error = error;
+    }
+}
@@ -0,0 +1,20 @@
+package org.keycloak.example.authenticator.dto;
+// 批量状态查询中单个用户的结果：是否已设置密保问题，以及最早的密保问题凭据的创建时间（未设置时为空）
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Getter;
+
+@Getter
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class SecretQuestionCredentialStatus {
+    private final String userId;
+    private final String username;
+    private final boolean configured;
+    private final Long createdDate;
+
+    public SecretQuestionCredentialStatus(String userId, String username, boolean configured, Long createdDate) {
+        this.userId = userId;
+        this.username = username;
+        this.configured = configured;
+        this.createdDate = createdDate;
+    }
+}
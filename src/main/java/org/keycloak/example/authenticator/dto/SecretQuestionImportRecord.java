@@ -0,0 +1,21 @@
+package org.keycloak.example.authenticator.dto;
+// 批量导入的单条记录，对应NDJSON请求体中的一行：{"username" : "<name>", "question" : "<ques>", "answer" : "<answer>"}
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Getter;
+
+@Getter
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class SecretQuestionImportRecord {
+    private final String username;
+    private final String question;
+    private final String answer;
+
+    @JsonCreator
+    public SecretQuestionImportRecord(@JsonProperty("username")String username, @JsonProperty("question")String question, @JsonProperty("answer")String answer) {
+        this.username = username;
+        this.question = question;
+        this.answer = answer;
+    }
+}
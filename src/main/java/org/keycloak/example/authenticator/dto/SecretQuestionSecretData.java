@@ -1,16 +1,32 @@
 package org.keycloak.example.authenticator.dto;
 // 定义答案数据POJO，这里的注解是为了在之后序列化时直接得到{"secret" : "<answer>"}的数据
+// 哈希存储时answer保存的是Base64编码的哈希值，salt和iterations为空则表示旧版本的明文答案
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Getter;
 
 @Getter
 public class SecretQuestionSecretData {
     private final String answer;
+    private final String salt;
+    private final Integer iterations;
+
+    public SecretQuestionSecretData(String answer) {
+        this(answer, null, null);
+    }
 
     @JsonCreator
-    public SecretQuestionSecretData(@JsonProperty("secret")String answer) {
+    public SecretQuestionSecretData(@JsonProperty("secret")String answer, @JsonProperty("salt")String salt, @JsonProperty("iterations")Integer iterations) {
         this.answer = answer;
+        this.salt = salt;
+        this.iterations = iterations;
+    }
+
+    // 是否为哈希后的答案，旧数据没有盐值，答案以明文保存
+    @JsonIgnore
+    public boolean isHashed() {
+        return salt != null && iterations != null;
     }
 //    public String getAnswer() {
 //        return answer;
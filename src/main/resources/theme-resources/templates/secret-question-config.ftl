@@ -6,15 +6,19 @@
         Setup Secret Question
     <#elseif section = "form">
         <form id="kc-totp-login-form" class="${properties.kcFormClass!}" action="${url.loginAction}" method="post">
+            <#-- 可以设置多个问题，未填写答案的问题会被忽略，登录时从中随机选择一个 -->
+            <#list secretQuestions as question>
             <div class="${properties.kcFormGroupClass!}">
                 <div class="${properties.kcLabelWrapperClass!}">
-                    <label for="totp" class="${properties.kcLabelClass!}">你姓什么？</label>
+                    <label for="secret-question-${question?index}" class="${properties.kcLabelClass!}">问题${question?counter}</label>
                 </div>
 
                 <div class="${properties.kcInputWrapperClass!}">
-                    <input id="totp" name="secret_answer" type="text" class="${properties.kcInputClass!}" />
+                    <input id="secret-question-${question?index}" name="secret_question" type="text" value="${question}" class="${properties.kcInputClass!}" />
+                    <input id="secret-answer-${question?index}" name="secret_answer" type="text" placeholder="答案" class="${properties.kcInputClass!}" />
                 </div>
             </div>
+            </#list>
 
             <div class="${properties.kcFormGroupClass!}">
                 <div id="kc-form-options" class="${properties.kcFormOptionsClass!}">
@@ -8,7 +8,7 @@
         <form id="kc-totp-login-form" class="${properties.kcFormClass!}" action="${url.loginAction}" method="post">
             <div class="${properties.kcFormGroupClass!}">
                 <div class="${properties.kcLabelWrapperClass!}">
-                    <label for="totp" class="${properties.kcLabelClass!}">你姓什么？</label>
+                    <label for="totp" class="${properties.kcLabelClass!}">${secretQuestion!"你姓什么？"}</label>
                 </div>
 
                 <div class="${properties.kcInputWrapperClass!}">
@@ -24,7 +24,7 @@
 
                 <div id="kc-form-buttons" class="${properties.kcFormButtonsClass!}">
                     <div class="${properties.kcFormButtonsWrapperClass!}">
-                        <input type="hidden" id="id-hidden-input" name="credentialId" <#if auth.selectedCredential?has_content>value="${auth.selectedCredential}"</#if>/>
+                        <input type="hidden" id="id-hidden-input" name="credentialId" <#if secretQuestionCredentialId?has_content>value="${secretQuestionCredentialId}"</#if>/>
                         <input class="${properties.kcButtonClass!} ${properties.kcButtonPrimaryClass!} ${properties.kcButtonBlockClass!} ${properties.kcButtonLargeClass!}"
                                name="login" id="kc-login" type="submit" value="${msg("doLogIn")}"/>
                     </div>